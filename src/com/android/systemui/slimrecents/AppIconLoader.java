@@ -25,45 +25,125 @@ import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
 
 import com.android.internal.icons.IconsHandler;
 import com.android.systemui.R;
 import com.android.systemui.slimrecents.ImageHelper;
 
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class handles async app icon load for the requested apps
- * and put them when sucessfull into the LRU cache.
+ * and put them when sucessfull into the LRU cache and the
+ * #link:IconDiskCache.
  *
  * Compared to the task screenshots this class is laid out due
  * that the #link:CacheController can request an app icon as well
  * eg if the app was updated and may changed the icon.
+ *
+ * Requests are queued by priority, #link:RecentPanelView orders them by
+ * the distance of the card from the visible cards. Requests for an icon
+ * which is already queued or rendering wait for that load instead of
+ * rendering it again.
  */
 public class AppIconLoader {
 
     /**
      * Singleton.
      */
-    private static AppIconLoader sInstance;
+    private static volatile AppIconLoader sInstance;
 
     private Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Queued or rendering icon loads by cache identifier.
+    private final ConcurrentHashMap<String, IconRequest> mInFlight =
+            new ConcurrentHashMap<String, IconRequest>();
 
     public interface IconCallback {
         void onDrawableLoaded(Drawable drawable);
     }
 
+    /**
+     * One icon load and everyone waiting for it.
+     */
+    private final class IconRequest {
+        private final String mIdentifier;
+        private final ArrayList<IconCallback> mCallbacks = new ArrayList<IconCallback>();
+        private boolean mDone;
+        private volatile boolean mCancelled;
+        volatile RecentsTaskScheduler.Job job;
+
+        IconRequest(String identifier) {
+            mIdentifier = identifier;
+        }
+
+        /**
+         * Returns false if the load is done or was cancelled,
+         * the caller needs a new request then.
+         */
+        synchronized boolean addCallback(IconCallback callback) {
+            final RecentsTaskScheduler.Job job = this.job;
+            if (mDone || mCancelled || (job != null && job.isCancelled())) {
+                return false;
+            }
+            if (callback != null) {
+                mCallbacks.add(callback);
+            }
+            return true;
+        }
+
+        /**
+         * The caller is not interested anymore. The load is cancelled
+         * if nobody else waits for it.
+         */
+        void removeCallback(IconCallback callback) {
+            synchronized (this) {
+                if (mDone || mCancelled) {
+                    return;
+                }
+                mCallbacks.remove(callback);
+                if (!mCallbacks.isEmpty()) {
+                    return;
+                }
+                mCancelled = true;
+            }
+            final RecentsTaskScheduler.Job job = this.job;
+            if (job != null) {
+                job.cancel();
+            }
+            mInFlight.remove(mIdentifier, this);
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized ArrayList<IconCallback> finish() {
+            mDone = true;
+            return new ArrayList<IconCallback>(mCallbacks);
+        }
+    }
+
     /**
      * Get the instance.
      */
     public static AppIconLoader getInstance(Context context) {
-        if (sInstance != null) {
-            return sInstance;
-        } else {
-            return sInstance = new AppIconLoader(context);
+        AppIconLoader instance = sInstance;
+        if (instance == null) {
+            synchronized (AppIconLoader.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new AppIconLoader(context);
+                }
+            }
         }
+        return instance;
     }
 
     /**
@@ -74,76 +154,126 @@ public class AppIconLoader {
     }
 
     /**
-     * Load the app icon via async task.
+     * Queue the app icon load on the icons lane of #link:RecentsTaskScheduler.
+     * The callback is called on the main thread.
      *
-     * @params packageName
-     * @params imageView
+     * @param priority queue priority, the caller may change it later on the
+     *                 job of the request, eg while the user scrolls.
      */
-    protected void loadAppIcon(ActivityInfo info, String identifier,
-            IconCallback callback, IconsHandler ih) {
-        final BitmapDownloaderTask task =
-                new BitmapDownloaderTask(callback, mContext, identifier, ih);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, info);
+    private IconRequest requestAppIcon(final ActivityInfo info,
+            final String identifier, final IconCallback callback,
+            final IconsHandler ih, int priority) {
+        final IconRequest[] created = new IconRequest[1];
+        final IconRequest request = mInFlight.compute(identifier, (key, current) -> {
+            if (current != null && current.addCallback(callback)) {
+                return current;
+            }
+            created[0] = new IconRequest(identifier);
+            created[0].addCallback(callback);
+            return created[0];
+        });
+        if (created[0] == null) {
+            // Joined a running load, make sure it is not queued behind us.
+            final RecentsTaskScheduler.Job job = request.job;
+            if (job != null && priority < job.getPriority()) {
+                job.setPriority(priority);
+            }
+            return request;
+        }
+        request.job = RecentsTaskScheduler.getInstance().submit(
+                RecentsTaskScheduler.LANE_ICONS, priority, null, () -> {
+            if (request.isCancelled()) {
+                return;
+            }
+            final Drawable icon = loadIcon(info, identifier, ih, request);
+            if (request.isCancelled()) {
+                // Everyone went away while we rendered, don't touch the caches.
+                return;
+            }
+            if (icon instanceof BitmapDrawable) {
+                // Put our bitmap intu LRU cache for later use.
+                CacheController.getInstance(mContext, null)
+                        .addBitmapToMemoryCache(identifier, icon);
+            }
+            final ArrayList<IconCallback> callbacks = request.finish();
+            mInFlight.remove(identifier, request);
+            mMainHandler.post(() -> {
+                // Assign image to the views which were passed through.
+                for (IconCallback cb : callbacks) {
+                    cb.onDrawableLoaded(icon);
+                }
+            });
+        });
+        return request;
     }
 
     /**
-     * AsyncTask loader for the app icon.
+     * One icon of a batch, see #link:loadAppIcons.
      */
-    private static class BitmapDownloaderTask
-            extends AsyncTask<ActivityInfo, Void, Drawable> {
-
-        private Drawable mAppIcon;
+    public static final class IconLoad implements LoadScope.Cancellable {
+        final ActivityInfo info;
+        final String identifier;
+        final IconCallback callback;
+        final int priority;
+        RecentsTaskScheduler.Job job;
+        private IconRequest request;
 
-        private IconCallback mCallback;
-        private final WeakReference<Context> rContext;
-
-        private String mLRUCacheKey;
-
-        private IconsHandler mIconsHandler;
+        public IconLoad(ActivityInfo info, String identifier,
+                IconCallback callback, int priority) {
+            this.info = info;
+            this.identifier = identifier;
+            this.callback = callback;
+            this.priority = priority;
+        }
 
-        public BitmapDownloaderTask(IconCallback callback,
-                Context context, String identifier, IconsHandler ih) {
-            mCallback = callback;
-            rContext = new WeakReference<Context>(context);
-            mLRUCacheKey = identifier;
-            mIconsHandler = ih;
+        public RecentsTaskScheduler.Job getJob() {
+            return job;
         }
 
+        /**
+         * Drop our callback. The load itself is only cancelled if no one
+         * else waits for the same icon.
+         */
         @Override
-        protected Drawable doInBackground(ActivityInfo... params) {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + 1);
-            if (isCancelled() || rContext == null) {
-                return null;
+        public void cancel() {
+            final IconRequest request = this.request;
+            if (request != null) {
+                request.removeCallback(callback);
             }
-            // Load and return bitmap
-            return getAppIcon(params[0], rContext.get(), mIconsHandler);
         }
+    }
 
-        @Override
-        protected void onPostExecute(Drawable bitmap) {
-            if (isCancelled()) {
-                bitmap = null;
-            }
+    /**
+     * Queue a batch of icon loads at once. They are rendered in parallel
+     * by all workers of the icons lane, the most urgent ones first.
+     */
+    protected void loadAppIcons(List<IconLoad> loads, IconsHandler ih) {
+        for (IconLoad load : loads) {
+            load.request = requestAppIcon(load.info, load.identifier, load.callback,
+                    ih, load.priority);
+            load.job = load.request.job;
+        }
+    }
 
-            final Context context;
-            if (rContext != null) {
-                context = rContext.get();
-            } else {
-                context = null;
-            }
-            // Assign image to the view if the view was passed through.
-            // #link:loadAppIcon
-            if (mCallback != null) {
-                mCallback.onDrawableLoaded(bitmap);
-            }
-            if (bitmap != null && context != null
-                    && bitmap instanceof BitmapDrawable) {
-                // Put our bitmap intu LRU cache for later use.
-                CacheController.getInstance(context, null)
-                        .addBitmapToMemoryCache(
-                        mLRUCacheKey, (BitmapDrawable)bitmap);
-            }
+    /**
+     * Get the icon from the disk cache or render it. Runs on the icons lane.
+     */
+    private Drawable loadIcon(ActivityInfo info, String identifier, IconsHandler ih,
+            IconRequest request) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + 1);
+        // Try the disk cache first, it survives SystemUI restarts.
+        final IconDiskCache diskCache = IconDiskCache.getInstance(mContext);
+        final String version = IconDiskCache.getPackageVersion(info);
+        final Bitmap stored = diskCache.getBitmap(identifier, version);
+        if (stored != null) {
+            return new BitmapDrawable(mContext.getResources(), stored);
+        }
+        // Load and return bitmap
+        final Drawable icon = getAppIcon(info, mContext, ih);
+        if (icon instanceof BitmapDrawable && !request.isCancelled()) {
+            diskCache.putBitmap(identifier, version, ((BitmapDrawable) icon).getBitmap());
         }
+        return icon;
     }
 
     /**
@@ -30,7 +30,7 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.LruCache;
 
-import java.util.ArrayList;
+import java.io.PrintWriter;
 
 /**
  * This class is our LRU cache controller. It holds
@@ -38,8 +38,14 @@ import java.util.ArrayList;
  *
  * BroadcastReceiver takes care of the situation if the user updated
  * or removed and installed again the app and the icon may have changed.
+ *
+ * Icons trimmed away because of memory pressure are kept in a soft
+ * referenced tier and revived on the next lookup if still present.
+ *
+ * Safe to use from the loader threads. LruCache guards its entries with
+ * its own lock, the key index and the counters are lock free.
  */
-public class CacheController {
+public class CacheController implements RecentsCacheManager.BudgetedCache {
 
     private final static String TAG = "RecentCacheController";
 
@@ -50,7 +56,7 @@ public class CacheController {
     /**
      * Singleton.
      */
-    private static CacheController sInstance;
+    private static volatile CacheController sInstance;
 
     /**
      * Memory Cache.
@@ -59,21 +65,33 @@ public class CacheController {
 
     private Context mContext;
     private final EvictionCallback mEvictionCallback;
-    private int mMaxMemory;
+    private final CacheStats mStats = new CacheStats();
+
+    // Package name to keys index of all current keys.
+    private final PackageKeyIndex mKeys = new PackageKeyIndex();
+    private final PackageKeyIndex.Presence mInMemoryCache = key -> mMemoryCache.get(key) != null;
 
-    // Array list of all current keys.
-    private final ArrayList<String> mKeys = new ArrayList<String>();
+    // Icons trimmed away by memory pressure or a smaller share.
+    private final SoftCacheTier<Drawable> mSoftTier = new SoftCacheTier<Drawable>();
+    // Set while the current thread trims or shrinks the cache, so evictions
+    // of concurrent puts are not demoted.
+    private final ThreadLocal<Boolean> mTrimming = new ThreadLocal<Boolean>();
 
     /**
      * Get the instance.
      */
     public static CacheController getInstance(Context context,
             EvictionCallback evictionCallback) {
-        if (sInstance != null) {
-            return sInstance;
-        } else {
-            return sInstance = new CacheController(context, evictionCallback);
+        CacheController instance = sInstance;
+        if (instance == null) {
+            synchronized (CacheController.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new CacheController(context, evictionCallback);
+                }
+            }
         }
+        return instance;
     }
 
     // Called from RecentController BroadcastReceiver
@@ -84,18 +102,13 @@ public class CacheController {
 
         // Check if icons from the searched package are present.
         // If yes remove them.
-        final ArrayList<String> keysToRemove = new ArrayList<String>();
-        for (String key : mKeys) {
-            if (key.toLowerCase().contains(packageName.toLowerCase())) {
-                keysToRemove.add(key);
-            }
-        }
-        for (String key : keysToRemove) {
+        for (String key : mKeys.getKeys(packageName)) {
             removeBitmapFromMemCache(key);
             if (mEvictionCallback != null) {
                 mEvictionCallback.onEntryEvicted(key);
             }
         }
+        mSoftTier.removePackage(packageName);
         if (removedPackage) {
             mayBeRemoveFavoriteEntry(packageName);
         }
@@ -133,19 +146,14 @@ public class CacheController {
 
     /**
      * Constructor.
-     * Defines the LRU cache size and setup the broadcast receiver.
+     * Defines the LRU cache size from our share of the recents cache budget.
      */
     private CacheController(Context context, EvictionCallback evictionCallback) {
         mContext = context;
         mEvictionCallback = evictionCallback;
 
-        // Get max available VM memory, exceeding this amount will throw an
-        // OutOfMemory exception. Stored in kilobytes as LruCache takes an
-        // int in its constructor.
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-
-        int cacheSize = maxMemory / 4;
-        mMaxMemory = maxMemory;
+        final RecentsCacheManager cacheManager = RecentsCacheManager.getInstance(context);
+        int cacheSize = cacheManager.getSizeKb(RecentsCacheManager.CACHE_ICONS);
 
         if (mMemoryCache == null) {
             mMemoryCache = new LruCache<String, Drawable>(cacheSize) {
@@ -161,9 +169,21 @@ public class CacheController {
                 @Override
                 protected void entryRemoved(boolean evicted, String key,
                         Drawable oldBitmap, Drawable newBitmap) {
+                    // Keep the package index in sync with evictions and removals.
+                    // A replaced entry (newBitmap != null) keeps its key.
+                    if (newBitmap == null) {
+                        mKeys.sync(key, mInMemoryCache);
+                    }
+                    if (evicted) {
+                        mStats.recordEviction();
+                        if (mTrimming.get() != null) {
+                            mSoftTier.put(key, oldBitmap);
+                        }
+                    }
                 }
             };
         }
+        cacheManager.register(RecentsCacheManager.CACHE_ICONS, this);
     }
 
     /**
@@ -171,10 +191,9 @@ public class CacheController {
      */
     protected void addBitmapToMemoryCache(String key, Drawable bitmap) {
         if (key != null && bitmap != null) {
-            if (key.startsWith(RecentPanelView.TASK_PACKAGE_IDENTIFIER)) {
-                mKeys.add(key);
-            }
             mMemoryCache.put(key, bitmap);
+            mKeys.sync(key, mInMemoryCache);
+            mStats.recordPut();
         }
     }
 
@@ -185,7 +204,17 @@ public class CacheController {
         if (key == null) {
             return null;
         }
-        return mMemoryCache.get(key);
+        Drawable bitmap = mMemoryCache.get(key);
+        if (bitmap == null) {
+            bitmap = mSoftTier.take(key);
+            if (bitmap != null) {
+                mMemoryCache.put(key, bitmap);
+                mKeys.sync(key, mInMemoryCache);
+                mStats.recordRevive();
+            }
+        }
+        mStats.recordLookup(bitmap != null);
+        return bitmap;
     }
 
     /**
@@ -195,9 +224,7 @@ public class CacheController {
         if (key == null) {
             return null;
         }
-        if (key.startsWith(RecentPanelView.TASK_PACKAGE_IDENTIFIER)) {
-            mKeys.remove(key);
-        }
+        mSoftTier.remove(key);
         return mMemoryCache.remove(key);
     }
 
@@ -206,14 +233,45 @@ public class CacheController {
      */
     public void clearCache() {
         mMemoryCache.evictAll();
+        mSoftTier.clear();
+    }
+
+    @Override
+    public int takeHitCount() {
+        return mStats.takeHits();
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void setMaxSizeKb(int sizeKb) {
+        mTrimming.set(Boolean.TRUE);
+        try {
+            mMemoryCache.resize(Math.max(sizeKb, 1));
+        } finally {
+            mTrimming.remove();
+        }
     }
 
     /** Trims the cache to a specific size */
-    final void trimToSize(int cacheSize) {
-        mMemoryCache.trimToSize(cacheSize);
+    @Override
+    public void trimToSizeKb(int sizeKb) {
+        mTrimming.set(Boolean.TRUE);
+        try {
+            mMemoryCache.trimToSize(sizeKb);
+        } finally {
+            mTrimming.remove();
+        }
     }
 
-    public int getMaxMemory() {
-        return mMaxMemory;
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Icons:");
+        mStats.dump(pw, prefix + "  ");
+        pw.print(prefix); pw.print("  size="); pw.print(mMemoryCache.size());
+        pw.print("kb maxSize="); pw.print(mMemoryCache.maxSize());
+        pw.print("kb entries="); pw.print(mKeys.size());
+        pw.print(" soft="); pw.println(mSoftTier.size());
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free hit, miss, put and eviction counters of one of our
+ * LRU cache controllers. Safe to update from any thread.
+ */
+public class CacheStats {
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mPuts = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mRevives = new AtomicLong();
+
+    // Hits already reported by takeHits().
+    private final AtomicLong mTakenHits = new AtomicLong();
+
+    public void recordHit() {
+        mHits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    /** Record the result of a cache lookup. */
+    public void recordLookup(boolean hit) {
+        if (hit) {
+            recordHit();
+        } else {
+            recordMiss();
+        }
+    }
+
+    public void recordPut() {
+        mPuts.incrementAndGet();
+    }
+
+    public void recordEviction() {
+        mEvictions.incrementAndGet();
+    }
+
+    /** Record an entry taken back from the soft tier. */
+    public void recordRevive() {
+        mRevives.incrementAndGet();
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public long getPuts() {
+        return mPuts.get();
+    }
+
+    public long getEvictions() {
+        return mEvictions.get();
+    }
+
+    public long getRevives() {
+        return mRevives.get();
+    }
+
+    /**
+     * Hits since the last call.
+     */
+    public int takeHits() {
+        final long hits = mHits.get();
+        return (int) (hits - mTakenHits.getAndSet(hits));
+    }
+
+    /**
+     * Hit ratio in percent, 0 if nothing was looked up yet.
+     */
+    public int getHitRatio() {
+        final long hits = mHits.get();
+        final long lookups = hits + mMisses.get();
+        return lookups == 0 ? 0 : (int) (hits * 100 / lookups);
+    }
+
+    /**
+     * Start counting from zero again.
+     */
+    public void reset() {
+        mHits.set(0);
+        mMisses.set(0);
+        mPuts.set(0);
+        mEvictions.set(0);
+        mRevives.set(0);
+        mTakenHits.set(0);
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("hits="); pw.print(mHits.get());
+        pw.print(" misses="); pw.print(mMisses.get());
+        pw.print(" hitRatio="); pw.print(getHitRatio()); pw.print("%");
+        pw.print(" puts="); pw.print(mPuts.get());
+        pw.print(" evictions="); pw.print(mEvictions.get());
+        pw.print(" revives="); pw.println(mRevives.get());
+    }
+}
@@ -23,8 +23,10 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.transition.Fade;
 import android.transition.Transition;
 import android.transition.AutoTransition;
@@ -42,6 +44,7 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.android.systemui.R;
 
@@ -57,6 +60,14 @@ public class ExpandableCardAdapter
     public ExpandableCardAdapter(Context context, boolean fastMode) {
         mContext = context;
         mFastMode = fastMode;
+        // Cards are identified by their task, so their views follow them
+        // when cards are inserted, moved or removed.
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mCards.get(position).persistentTaskId;
     }
 
     @Override
@@ -122,6 +133,7 @@ public class ExpandableCardAdapter
         if (!mFastMode && screenshotAvailable) {
             holder.screenshot.setImageBitmap(card.screenshot);
         }
+        card.onBound();
     }
 
     private boolean canDisplayScreenshot(ExpandableCard card) {
@@ -136,19 +148,78 @@ public class ExpandableCardAdapter
     public void removeCard(int pos)  {
         mCards.remove(pos);
         notifyItemRemoved(pos);
-        notifyItemRangeChanged(pos, getItemCount());
+    }
+
+    /**
+     * Replace all cards at once. Only inserted, removed, moved and changed
+     * cards are notified, cards are matched by their task.
+     */
+    public void setCards(final List<? extends ExpandableCard> cards) {
+        final ArrayList<ExpandableCard> oldCards = new ArrayList<>(mCards);
+        final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldCards.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return cards.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldCards.get(oldPosition).persistentTaskId
+                        == cards.get(newPosition).persistentTaskId;
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                // Cards are reused and changed in place, so compare with
+                // what was bound last.
+                final ExpandableCard card = cards.get(newPosition);
+                return oldCards.get(oldPosition) == card && !card.isContentChanged();
+            }
+        });
+        mCards.clear();
+        mCards.addAll(cards);
+        diff.dispatchUpdatesTo(this);
+    }
+
+    /**
+     * Rebind only the cards which changed since they were bound.
+     */
+    public void notifyChangedCards() {
+        for (int i = 0; i < mCards.size(); i++) {
+            final ExpandableCard card = mCards.get(i);
+            if (card.isContentChanged()) {
+                notifyItemChanged(i);
+            }
+        }
     }
 
     public void clearCards() {
+        final int count = mCards.size();
         mCards.clear();
+        notifyItemRangeRemoved(0, count);
     }
 
     public ExpandableCard getCard(int pos) {
         return mCards.get(pos);
     }
 
+    /**
+     * Current adapter position of the card, -1 if it is not in the adapter.
+     */
+    public int getCardPosition(ExpandableCard card) {
+        return mCards.indexOf(card);
+    }
+
     public void removeCard(ExpandableCard card) {
-        removeCard(mCards.indexOf(card));
+        final int pos = mCards.indexOf(card);
+        if (pos >= 0) {
+            removeCard(pos);
+        }
     }
 
     @Override
@@ -369,6 +440,20 @@ public class ExpandableCardAdapter
         int persistentTaskId = -1;
         String packageName;
 
+        // Content of the last bind, see #link:setCards.
+        private boolean mBound;
+        private String mBoundAppName;
+        private Drawable mBoundAppIcon;
+        private Bitmap mBoundScreenshot;
+        private Drawable mBoundCustom;
+        private int mBoundBackgroundColor;
+        private float mBoundCornerRadius;
+        private boolean mBoundExpanded;
+        private boolean mBoundExpandVisible;
+        private boolean mBoundPinAppIcon;
+        private boolean mBoundNoIcon;
+        private boolean mBoundFavorite;
+
         public ExpandableCard(String appName, Drawable appIcon) {
             this.appName = appName;
             this.appIcon = appIcon;
@@ -382,6 +467,42 @@ public class ExpandableCardAdapter
             mOptions.clear();
         }
 
+        /**
+         * Remember everything onBindViewHolder shows.
+         */
+        void onBound() {
+            mBound = true;
+            mBoundAppName = appName;
+            mBoundAppIcon = appIcon;
+            mBoundScreenshot = screenshot;
+            mBoundCustom = custom;
+            mBoundBackgroundColor = cardBackgroundColor;
+            mBoundCornerRadius = cornerRadius;
+            mBoundExpanded = expanded;
+            mBoundExpandVisible = expandVisible;
+            mBoundPinAppIcon = pinAppIcon;
+            mBoundNoIcon = noIcon;
+            mBoundFavorite = favorite;
+        }
+
+        /**
+         * Wether the card changed since it was bound last.
+         */
+        boolean isContentChanged() {
+            return !mBound
+                    || !TextUtils.equals(appName, mBoundAppName)
+                    || appIcon != mBoundAppIcon
+                    || screenshot != mBoundScreenshot
+                    || custom != mBoundCustom
+                    || cardBackgroundColor != mBoundBackgroundColor
+                    || cornerRadius != mBoundCornerRadius
+                    || expanded != mBoundExpanded
+                    || expandVisible != mBoundExpandVisible
+                    || pinAppIcon != mBoundPinAppIcon
+                    || noIcon != mBoundNoIcon
+                    || favorite != mBoundFavorite;
+        }
+
         void forceHideOptions() {
             hideOptionsListener.onHideOptions(index);
         }
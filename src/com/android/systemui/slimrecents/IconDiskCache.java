@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Disk backed second tier for the rendered app icons.
+ *
+ * The #link:CacheController memory cache is lost on every SystemUI restart,
+ * settings change or density change. Rendered icons are stored here as well,
+ * keyed by component, package version, icon pack, density and scale factor,
+ * so they don't need to go through the IconsHandler again. The package version
+ * keeps us from returning the icon of an app which was updated while we did
+ * not listen, eg during an OTA.
+ *
+ * All methods except #link:setIconConfig do disk I/O and must be called
+ * from a background thread.
+ */
+public class IconDiskCache {
+
+    private final static String TAG = "RecentIconDiskCache";
+
+    private static final String DIR_NAME = "slimrecents_icons";
+    private static final String FILE_SUFFIX = ".png";
+    private static final char PACKAGE_SEPARATOR = '@';
+
+    // Max size of all stored icons.
+    private static final long MAX_DISK_SIZE = 4 * 1024 * 1024;
+    // Check the disk size every n writes.
+    private static final int TRIM_CHECK_INTERVAL = 16;
+
+    /**
+     * Singleton.
+     */
+    private static volatile IconDiskCache sInstance;
+
+    // Decode scratch storage per icon worker, so decoding does not
+    // allocate a new temp buffer for every icon.
+    private static final ThreadLocal<BitmapFactory.Options> sDecodeOptions =
+            new ThreadLocal<BitmapFactory.Options>() {
+        @Override
+        protected BitmapFactory.Options initialValue() {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inTempStorage = new byte[16 * 1024];
+            return options;
+        }
+    };
+
+    private final File mDir;
+    private volatile String mIconConfig = "";
+    private int mWritesSinceTrim;
+
+    /**
+     * Get the instance.
+     */
+    public static IconDiskCache getInstance(Context context) {
+        IconDiskCache instance = sInstance;
+        if (instance == null) {
+            synchronized (IconDiskCache.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new IconDiskCache(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor.
+     */
+    private IconDiskCache(Context context) {
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    /**
+     * Set the current icon rendering config. Icons stored with another
+     * config are not returned anymore but stay on disk until they are trimmed,
+     * so switching back is for free.
+     */
+    public void setIconConfig(String iconPack, int densityDpi, float scaleFactor) {
+        mIconConfig = (iconPack == null ? "" : iconPack) + "|" + densityDpi + "|" + scaleFactor;
+    }
+
+    /**
+     * Get the version part of the key for the app of the activity.
+     */
+    public static String getPackageVersion(ActivityInfo info) {
+        final ApplicationInfo appInfo = info.applicationInfo;
+        return appInfo.versionCode + ":" + appInfo.sourceDir;
+    }
+
+    /**
+     * Get the icon for the identifier, null if not stored.
+     */
+    public Bitmap getBitmap(String identifier, String version) {
+        final File file = getFile(identifier, version);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(),
+                sDecodeOptions.get());
+        if (bitmap == null) {
+            // Broken file, get rid of it.
+            file.delete();
+        } else {
+            // Keep recently used icons when trimming.
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Store the icon for the identifier.
+     */
+    public void putBitmap(String identifier, String version, Bitmap bitmap) {
+        final File file = getFile(identifier, version);
+        if (file == null || bitmap == null) {
+            return;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(TAG, "Unable to create icon cache dir " + mDir);
+            return;
+        }
+        final File tmp = new File(mDir, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store icon " + identifier, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+        }
+        maybeTrim();
+    }
+
+    /**
+     * Remove all icons of the package, called if the app was updated or removed.
+     */
+    public void removePackage(String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        final String prefix = packageName + PACKAGE_SEPARATOR;
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String identifier, String version) {
+        final String packageName = PackageKeyIndex.getPackageName(identifier);
+        if (packageName == null || packageName.isEmpty()) {
+            return null;
+        }
+        final String key = identifier + "|" + version + "|" + mIconConfig;
+        final String hash = sha1(key);
+        if (hash == null) {
+            return null;
+        }
+        return new File(mDir, packageName + PACKAGE_SEPARATOR + hash + FILE_SUFFIX);
+    }
+
+    private static String sha1(String key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "SHA-1 not available", e);
+            return null;
+        }
+        final byte[] bytes = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private void maybeTrim() {
+        synchronized (this) {
+            if (++mWritesSinceTrim < TRIM_CHECK_INTERVAL) {
+                return;
+            }
+            mWritesSinceTrim = 0;
+        }
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_DISK_SIZE) {
+            return;
+        }
+        // Oldest first.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (size <= MAX_DISK_SIZE * 3 / 4) {
+                break;
+            }
+            size -= file.length();
+            file.delete();
+        }
+    }
+}
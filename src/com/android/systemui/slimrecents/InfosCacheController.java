@@ -22,23 +22,49 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
+import android.os.LocaleList;
+import android.os.SystemClock;
 import android.util.LruCache;
 
-import java.util.ArrayList;
+import java.io.PrintWriter;
 
 /**
  * This class is our LRU cache controller. It holds
  * tasks activity infos.
  *
+ * The capacity follows the configured max apps and grows if a load pass
+ * keeps missing, up to our share of the recents cache budget.
+ *
+ * Components PackageManager could not resolve are remembered for a while
+ * as negative entries, so dead tasks don't cost a binder call on every load.
+ *
+ * Infos trimmed away because of memory pressure are kept in a soft
+ * referenced tier and revived on the next lookup if still present.
+ *
+ * Labels of tasks without a task description label are cached as well,
+ * keyed by component and locale, so we don't load the app resources
+ * on every open.
+ *
+ * Safe to use from the loader threads. LruCache guards its entries with
+ * its own lock, the key index and the counters are lock free.
  */
-public class InfosCacheController {
+public class InfosCacheController implements RecentsCacheManager.BudgetedCache {
 
     private final static String TAG = "RecentCacheController";
 
+    // Never go below this capacity, even under memory pressure.
+    private static final int MIN_CAPACITY = 10;
+    // Grow the capacity by 1/4 if a load pass missed too often.
+    private static final float TARGET_HIT_RATIO = 0.9f;
+
+    // Negative entries expire after this time.
+    private static final long NEGATIVE_ENTRY_TTL = 5 * 60 * 1000;
+    private static final int NEGATIVE_CACHE_SIZE = 32;
+
     /**
      * Singleton.
      */
-    private static InfosCacheController sInstance;
+    private static volatile InfosCacheController sInstance;
 
     /**
      * Memory Cache.
@@ -46,33 +72,112 @@ public class InfosCacheController {
     protected LruCache<String, ActivityInfo> mMemoryCache;
 
     private Context mContext;
+    private final CacheStats mStats = new CacheStats();
 
-    // Array list of all current keys.
-    private final ArrayList<String> mKeys = new ArrayList<String>();
+    // Capacity limit from our share of the recents cache budget.
+    private int mCeiling;
+    // Capacity a full panel needs.
+    private int mTargetCapacity = MIN_CAPACITY;
+    private long mPassHits;
+    private long mPassMisses;
+    private long mPassEvictions;
+
+    // Package name to keys index of all current keys.
+    private final PackageKeyIndex mKeys = new PackageKeyIndex();
+    private final PackageKeyIndex.Presence mInMemoryCache = key -> mMemoryCache.get(key) != null;
+
+    // Infos trimmed away by memory pressure or a smaller capacity.
+    private final SoftCacheTier<ActivityInfo> mSoftTier = new SoftCacheTier<ActivityInfo>();
+    // Set while the current thread trims or shrinks the cache, so evictions
+    // of concurrent puts are not demoted.
+    private final ThreadLocal<Boolean> mTrimming = new ThreadLocal<Boolean>();
+
+    /**
+     * Unresolvable components with the time we asked PackageManager.
+     */
+    private final LruCache<String, Long> mNegativeCache;
+    private final PackageKeyIndex mNegativeKeys = new PackageKeyIndex();
+    private final PackageKeyIndex.Presence mInNegativeCache;
+
+    /**
+     * Activity labels keyed by component and locale.
+     */
+    private final LruCache<String, String> mLabelCache;
+    private final PackageKeyIndex mLabelKeys = new PackageKeyIndex();
+    private final PackageKeyIndex.Presence mInLabelCache;
+    private volatile String mLocaleTags;
 
     /**
      * Get the instance.
      */
     public static InfosCacheController getInstance(Context context) {
-        if (sInstance != null) {
-            return sInstance;
-        } else {
-            return sInstance = new InfosCacheController(context);
+        InfosCacheController instance = sInstance;
+        if (instance == null) {
+            synchronized (InfosCacheController.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new InfosCacheController(context);
+                }
+            }
         }
+        return instance;
     }
 
     /**
      * Constructor.
-     * Defines the LRU cache size.
+     * Defines the LRU cache size from our share of the recents cache budget.
      */
     private InfosCacheController(Context context) {
         mContext = context;
 
-        int cacheSize = 25;
+        final RecentsCacheManager cacheManager = RecentsCacheManager.getInstance(context);
+        mCeiling = toEntries(cacheManager.getSizeKb(RecentsCacheManager.CACHE_INFOS));
+        int cacheSize = Math.min(mTargetCapacity, mCeiling);
 
         if (mMemoryCache == null) {
-            mMemoryCache = new LruCache<String, ActivityInfo>(cacheSize);
+            mMemoryCache = new LruCache<String, ActivityInfo>(cacheSize) {
+                @Override
+                protected void entryRemoved(boolean evicted, String key,
+                        ActivityInfo oldInfo, ActivityInfo newInfo) {
+                    // Keep the package index in sync with evictions and removals.
+                    if (newInfo == null) {
+                        mKeys.sync(key, mInMemoryCache);
+                    }
+                    if (evicted) {
+                        mStats.recordEviction();
+                        if (mTrimming.get() != null) {
+                            mSoftTier.put(key, oldInfo);
+                        }
+                    }
+                }
+            };
         }
+        mNegativeCache = new LruCache<String, Long>(NEGATIVE_CACHE_SIZE) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                    Long oldTime, Long newTime) {
+                if (newTime == null) {
+                    mNegativeKeys.sync(key, mInNegativeCache);
+                }
+            }
+        };
+        mLabelCache = new LruCache<String, String>(cacheSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                    String oldLabel, String newLabel) {
+                if (newLabel == null) {
+                    mLabelKeys.sync(key, mInLabelCache);
+                }
+            }
+        };
+        mInNegativeCache = key -> mNegativeCache.get(key) != null;
+        mInLabelCache = key -> mLabelCache.get(key) != null;
+        mLocaleTags = context.getResources().getConfiguration().getLocales().toLanguageTags();
+        cacheManager.register(RecentsCacheManager.CACHE_INFOS, this);
+    }
+
+    private static int toEntries(int sizeKb) {
+        return Math.max(sizeKb / RecentsCacheManager.INFO_ENTRY_SIZE_KB, 1);
     }
 
     // Called from RecentController BroadcastReceiver
@@ -80,15 +185,83 @@ public class InfosCacheController {
         if (packageName == null) {
             return;
         }
-        final ArrayList<String> keysToRemove = new ArrayList<String>();
-        for (String key : mKeys) {
-            if (key.toLowerCase().contains(packageName.toLowerCase())) {
-                keysToRemove.add(key);
-            }
-        }
-        for (String key : keysToRemove) {
+        for (String key : mKeys.getKeys(packageName)) {
             removeInfosFromMemCache(key);
         }
+        mSoftTier.removePackage(packageName);
+        // The package may be installed or enabled now.
+        for (String key : mNegativeKeys.getKeys(packageName)) {
+            mNegativeCache.remove(key);
+        }
+        for (String key : mLabelKeys.getKeys(packageName)) {
+            mLabelCache.remove(key);
+        }
+    }
+
+    /**
+     * Called on configuration changes. Drops all labels if the locales changed.
+     */
+    public void onLocalesChanged(LocaleList locales) {
+        final String localeTags = locales.toLanguageTags();
+        if (!localeTags.equals(mLocaleTags)) {
+            mLocaleTags = localeTags;
+            mLabelCache.evictAll();
+        }
+    }
+
+    private String getLabelKey(String key) {
+        // The locale is part of the key, so a label loaded by a loader
+        // which raced with a locale change is never returned.
+        return key + "|" + mLocaleTags;
+    }
+
+    /**
+     * Add the label of the component for the current locale.
+     */
+    protected void addLabelToMemoryCache(String key, String label) {
+        if (key != null && label != null) {
+            final String labelKey = getLabelKey(key);
+            mLabelCache.put(labelKey, label);
+            mLabelKeys.sync(labelKey, mInLabelCache);
+        }
+    }
+
+    /**
+     * Get the label of the component for the current locale.
+     */
+    protected String getLabelFromMemCache(String key) {
+        if (key == null) {
+            return null;
+        }
+        return mLabelCache.get(getLabelKey(key));
+    }
+
+    /**
+     * Remember that the component could not be resolved.
+     */
+    protected void markUnresolvable(String key) {
+        if (key != null) {
+            mNegativeCache.put(key, SystemClock.elapsedRealtime());
+            mNegativeKeys.sync(key, mInNegativeCache);
+        }
+    }
+
+    /**
+     * Wether the component could not be resolved within NEGATIVE_ENTRY_TTL.
+     */
+    protected boolean isKnownUnresolvable(String key) {
+        if (key == null) {
+            return false;
+        }
+        final Long time = mNegativeCache.get(key);
+        if (time == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() - time > NEGATIVE_ENTRY_TTL) {
+            mNegativeCache.remove(key);
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -96,8 +269,9 @@ public class InfosCacheController {
      */
     protected void addInfosToMemoryCache(String key, ActivityInfo info) {
         if (key != null && info != null) {
-            mKeys.add(key);
             mMemoryCache.put(key, info);
+            mKeys.sync(key, mInMemoryCache);
+            mStats.recordPut();
         }
     }
 
@@ -108,7 +282,17 @@ public class InfosCacheController {
         if (key == null) {
             return null;
         }
-        return mMemoryCache.get(key);
+        ActivityInfo info = mMemoryCache.get(key);
+        if (info == null) {
+            info = mSoftTier.take(key);
+            if (info != null) {
+                mMemoryCache.put(key, info);
+                mKeys.sync(key, mInMemoryCache);
+                mStats.recordRevive();
+            }
+        }
+        mStats.recordLookup(info != null);
+        return info;
     }
 
     /**
@@ -118,7 +302,7 @@ public class InfosCacheController {
         if (key == null) {
             return null;
         }
-        mKeys.remove(key);
+        mSoftTier.remove(key);
         return mMemoryCache.remove(key);
     }
 
@@ -127,14 +311,101 @@ public class InfosCacheController {
      */
     public void clearCache() {
         mMemoryCache.evictAll();
+        mNegativeCache.evictAll();
+        mLabelCache.evictAll();
+        mSoftTier.clear();
     }
 
     public void removeInfos(String key) {
         removeInfosFromMemCache(key);
     }
 
-    /** Trims the cache to a specific size */
-    final void trimToSize(int cacheSize) {
-        mMemoryCache.trimToSize(cacheSize);
+    @Override
+    public int takeHitCount() {
+        return mStats.takeHits();
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public synchronized void setMaxSizeKb(int sizeKb) {
+        mCeiling = toEntries(sizeKb);
+        applyCapacity();
+    }
+
+    /**
+     * Trims the cache to a specific size. We keep at least what a full
+     * panel needs, otherwise the next load evicts its own entries,
+     * except if we are asked to give back everything.
+     */
+    @Override
+    public synchronized void trimToSizeKb(int sizeKb) {
+        final int size = sizeKb <= 0 ? 0
+                : Math.max(toEntries(sizeKb), Math.min(mTargetCapacity, mCeiling));
+        mTrimming.set(Boolean.TRUE);
+        try {
+            mMemoryCache.trimToSize(size);
+        } finally {
+            mTrimming.remove();
+        }
+    }
+
+    /**
+     * Size the cache for the configured max apps. The loader resolves
+     * more tasks than it shows (blacklisted, favorites further down),
+     * so use the larger of both values.
+     */
+    public synchronized void setMaxApps(int maxApps, int maxRecentTasks) {
+        final int target = Math.max(MIN_CAPACITY,
+                Math.min(Math.max(maxApps, maxRecentTasks), maxApps * 2));
+        mTargetCapacity = target;
+        applyCapacity();
+    }
+
+    /**
+     * Called after every card load pass. If the pass missed too
+     * often, the cache is too small for the task list, so grow it.
+     */
+    public synchronized void onLoadPassFinished() {
+        final long hits = mStats.getHits() - mPassHits;
+        final long misses = mStats.getMisses() - mPassMisses;
+        final long evictions = mStats.getEvictions() - mPassEvictions;
+        mPassHits = mStats.getHits();
+        mPassMisses = mStats.getMisses();
+        mPassEvictions = mStats.getEvictions();
+        final long lookups = hits + misses;
+        // Misses are fine as long as nothing was evicted to make room for them.
+        // Counters may have been reset in between, skip that pass.
+        if (lookups <= 0 || evictions <= 0 || hits >= lookups * TARGET_HIT_RATIO) {
+            return;
+        }
+        mTargetCapacity = Math.max(mTargetCapacity,
+                Math.max((int) lookups, mTargetCapacity + mTargetCapacity / 4));
+        applyCapacity();
+    }
+
+    private void applyCapacity() {
+        final int capacity = Math.max(Math.min(mTargetCapacity, mCeiling), 1);
+        mTrimming.set(Boolean.TRUE);
+        try {
+            mMemoryCache.resize(capacity);
+        } finally {
+            mTrimming.remove();
+        }
+        mLabelCache.resize(capacity);
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Infos:");
+        mStats.dump(pw, prefix + "  ");
+        pw.print(prefix); pw.print("  entries="); pw.print(mMemoryCache.size());
+        pw.print(" capacity="); pw.print(mMemoryCache.maxSize());
+        pw.print(" target="); pw.print(mTargetCapacity);
+        pw.print(" ceiling="); pw.print(mCeiling);
+        pw.print(" unresolvable="); pw.print(mNegativeCache.size());
+        pw.print(" labels="); pw.print(mLabelCache.size());
+        pw.print(" soft="); pw.println(mSoftTier.size());
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import java.util.ArrayList;
+
+/**
+ * Cancellation scope of one #link:RecentPanelView CardLoader pass.
+ *
+ * All background work a pass starts (task resolving, icon and screenshot
+ * loads) is added to its scope. Cancelling the scope, eg if the panel hides
+ * or the screen turns off, drops the queued work, and running work checks
+ * the scope before it writes into our caches or posts results to the cards.
+ *
+ * Safe to use from any thread.
+ */
+public class LoadScope {
+
+    /**
+     * Work which can be cancelled with its scope.
+     */
+    public interface Cancellable {
+        void cancel();
+    }
+
+    private final ArrayList<Cancellable> mWork = new ArrayList<Cancellable>();
+    private volatile boolean mCancelled;
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Add work to the scope. It is cancelled right away if the scope
+     * is cancelled already.
+     */
+    public void add(Cancellable work) {
+        if (work == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!mCancelled) {
+                mWork.add(work);
+                return;
+            }
+        }
+        work.cancel();
+    }
+
+    /**
+     * Cancel all work of the scope. Does nothing if it was cancelled already.
+     */
+    public void cancel() {
+        final ArrayList<Cancellable> work;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            work = new ArrayList<Cancellable>(mWork);
+            mWork.clear();
+        }
+        for (Cancellable w : work) {
+            w.cancel();
+        }
+    }
+
+    /**
+     * Wrap a result callback so it is dropped if the scope got
+     * cancelled before it runs.
+     */
+    public Runnable guard(final Runnable runnable) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    runnable.run();
+                }
+            }
+        };
+    }
+}
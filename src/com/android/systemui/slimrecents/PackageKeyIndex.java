@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Package name to cache keys index used by our LRU cache controllers.
+ *
+ * Keys are either a flattened component name (package/class) or a
+ * task identifier (#link:RecentPanelView.TASK_PACKAGE_IDENTIFIER followed
+ * by a flattened component name or a package name). The cache controllers
+ * #link:sync a key after every put and from their LruCache entryRemoved
+ * callback, so evicted keys never stay behind and cached keys are never
+ * missing.
+ *
+ * Safe to use from any thread. Lookups are lock free, updates only lock
+ * the hash bin of the affected package.
+ */
+public class PackageKeyIndex {
+
+    /**
+     * Tells if a key is in the cache right now.
+     */
+    public interface Presence {
+        boolean contains(String key);
+    }
+
+    private static final int LOCK_STRIPES = 16;
+
+    // Serializes the syncs of a key.
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    private final ConcurrentHashMap<String, Set<String>> mKeysByPackage =
+            new ConcurrentHashMap<String, Set<String>>();
+
+    public PackageKeyIndex() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Extract the package name out of a cache key.
+     */
+    public static String getPackageName(String key) {
+        if (key == null) {
+            return null;
+        }
+        int start = 0;
+        if (key.startsWith(RecentPanelView.TASK_PACKAGE_IDENTIFIER)) {
+            start = RecentPanelView.TASK_PACKAGE_IDENTIFIER.length();
+        }
+        final int end = key.indexOf('/', start);
+        return end < 0 ? key.substring(start) : key.substring(start, end);
+    }
+
+    /**
+     * Add or remove the key as the cache has it now. LruCache calls
+     * entryRemoved outside its lock, so a put and an eviction of the same
+     * key can interleave with their index updates. Syncs of a key run one
+     * at a time and each reads the cache after its change, so the last one
+     * always leaves the index as the cache is.
+     *
+     * Don't hold a sync lock while changing the cache, its evictions
+     * sync other keys.
+     */
+    public void sync(String key, Presence cache) {
+        if (key == null) {
+            return;
+        }
+        synchronized (mLocks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES]) {
+            if (cache.contains(key)) {
+                add(key);
+            } else {
+                remove(key);
+            }
+        }
+    }
+
+    public void add(String key) {
+        final String packageName = getPackageName(key);
+        if (packageName == null) {
+            return;
+        }
+        mKeysByPackage.compute(packageName, (p, keys) -> {
+            if (keys == null) {
+                keys = ConcurrentHashMap.newKeySet();
+            }
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    public void remove(String key) {
+        final String packageName = getPackageName(key);
+        if (packageName == null) {
+            return;
+        }
+        mKeysByPackage.computeIfPresent(packageName, (p, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Get a copy of all keys of the requested package. The caller is free to
+     * remove the returned keys from the cache while iterating over them.
+     */
+    public ArrayList<String> getKeys(String packageName) {
+        final ArrayList<String> result = new ArrayList<String>();
+        if (packageName == null) {
+            return result;
+        }
+        final Set<String> keys = mKeysByPackage.get(packageName);
+        if (keys != null) {
+            result.addAll(keys);
+        }
+        return result;
+    }
+
+    public void clear() {
+        mKeysByPackage.clear();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Set<String> keys : mKeysByPackage.values()) {
+            size += keys.size();
+        }
+        return size;
+    }
+}
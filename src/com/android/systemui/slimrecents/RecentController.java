@@ -41,7 +41,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 //import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 //import android.database.ContentObserver;
 import android.graphics.Color;
@@ -50,9 +49,8 @@ import android.graphics.drawable.VectorDrawable;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.hardware.display.DisplayManager;
 import android.media.MediaMetadata;
-//import android.net.Uri;
+import android.net.Uri;
 //import android.os.Bundle;
 import android.os.Handler;
 //import android.os.Message;
@@ -81,6 +79,7 @@ import android.widget.RelativeLayout;
 import android.text.TextUtils;
 
 import com.android.internal.icons.IconsHandler;
+import com.android.systemui.Dumpable;
 import com.android.systemui.R;
 import com.android.systemui.recents.misc.SystemServicesProxy;
 import com.android.systemui.shared.recents.utilities.Utilities;
@@ -92,6 +91,8 @@ import com.android.systemui.statusbar.phone.StatusBar;
 
 import static com.android.systemui.statusbar.phone.StatusBar.SYSTEM_DIALOG_REASON_RECENT_APPS;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -107,7 +108,7 @@ import java.util.Locale;
  * are handled here.
  */
 public class RecentController implements RecentPanelView.OnExitListener,
-        RecentPanelView.OnTasksLoadedListener, CommandQueue.Callbacks {
+        RecentPanelView.OnTasksLoadedListener, CommandQueue.Callbacks, Dumpable {
 
     private static final String TAG = "SlimRecentsController";
 
@@ -122,6 +123,7 @@ public class RecentController implements RecentPanelView.OnExitListener,
     private Configuration mConfiguration;
     private Context mContext;
     private ActivityManager mAm;
+    private RecentsSystemState mSystemState;
     private IActivityManager mIam;
     private WindowManager mWindowManager;
     private IWindowManager mWindowManagerService;
@@ -159,6 +161,8 @@ public class RecentController implements RecentPanelView.OnExitListener,
     private Handler mHandler;
 
     private IconsHandler mIconsHandler;
+    private String mCurrentIconPack;
+    private boolean mIconPackLoaded;
 
     private boolean mWaitingClearAllConfirmation;
     private ObjectAnimator mClearAllAnimation;
@@ -175,7 +179,13 @@ public class RecentController implements RecentPanelView.OnExitListener,
                     hideRecents(false);
                 }
             } else if (Intent.ACTION_SCREEN_OFF.equals(action)){
-                hideRecents(true);
+                if (!hideRecents(true) && mRecentPanelView != null) {
+                    // Not showing, but maybe still preloading. Stop it,
+                    // nobody will look at the cards with the screen off.
+                    mIsPreloaded = false;
+                    mIsToggled = false;
+                    mRecentPanelView.setCancelledByUser(true);
+                }
             }
         }
     };
@@ -276,6 +286,15 @@ public class RecentController implements RecentPanelView.OnExitListener,
             }
         });
 
+        // Create our caches now so they register with the shared memory budget.
+        CacheController.getInstance(mContext, null);
+        ThumbnailsCacheController.getInstance(mContext);
+        InfosCacheController.getInstance(mContext);
+
+        // Start listening to task changes to have the task list ready on open.
+        RecentTasksModel.getInstance(mContext);
+        mSystemState = RecentsSystemState.getInstance(mContext);
+
         mIconsHandler = new IconsHandler(mContext, R.dimen.recent_app_icon_size, mScaleFactor);
         mRecentPanelView.setIconsHandler(mIconsHandler);
 
@@ -291,9 +310,15 @@ public class RecentController implements RecentPanelView.OnExitListener,
                 .removeCallbacks(this);
     }
 
-    public void refreshCachedPackage(String packageName, boolean removedPackage) {
+    public void refreshCachedPackage(final String packageName, boolean removedPackage) {
         CacheController.getInstance(mContext, null).refreshPackage(packageName, removedPackage);
         InfosCacheController.getInstance(mContext).refreshPackage(packageName);
+        // Disk work, off the main thread. Not part of any load scope, so
+        // hiding the panel never drops it.
+        RecentsTaskScheduler.getInstance().submit(RecentsTaskScheduler.LANE_TASKS,
+                RecentsTaskScheduler.PRIORITY_LOW, null, () -> {
+            IconDiskCache.getInstance(mContext).removePackage(packageName);
+        });
     }
 
     public void addSbCallbacks() {
@@ -302,23 +327,49 @@ public class RecentController implements RecentPanelView.OnExitListener,
     }
 
     public void evictAllCaches() {
-        //ThumbnailsCacheController.getInstance(mContext).clearCache();
+        ThumbnailsCacheController.getInstance(mContext).clearCache();
         CacheController.getInstance(mContext, null).clearCache();
         InfosCacheController.getInstance(mContext).clearCache();
     }
 
-    public void trimCaches(boolean lowMem) {
-        int maxMemory;
-        if (lowMem) {
-            /*maxMemory = ThumbnailsCacheController.getInstance(mContext).getMaxMemory();
-            ThumbnailsCacheController.getInstance(mContext).trimToSize(maxMemory / 6);*/
-            maxMemory = CacheController.getInstance(mContext, null).getMaxMemory();
-            CacheController.getInstance(mContext, null).trimToSize(maxMemory / 8);
-            InfosCacheController.getInstance(mContext).trimToSize(10);
-        } else {
-            maxMemory = CacheController.getInstance(mContext, null).getMaxMemory();
-            CacheController.getInstance(mContext, null).trimToSize(maxMemory / 6);
-            InfosCacheController.getInstance(mContext).trimToSize(20);
+    /**
+     * Trim our caches to the given percent of their share.
+     */
+    public void trimCaches(int keepPercent) {
+        if (keepPercent >= 100) {
+            return;
+        }
+        RecentsCacheManager.getInstance(mContext).trim(keepPercent);
+        ThumbnailsCacheController.getInstance(mContext).trimGraphicsMemory(keepPercent);
+    }
+
+    /**
+     * Dump the state of our caches. Pass "reset" as argument
+     * to start counting from zero after the dump.
+     * E.g. adb shell dumpsys activity service com.android.systemui/.SystemUIService
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final CacheController icons = CacheController.getInstance(mContext, null);
+        final ThumbnailsCacheController thumbs = ThumbnailsCacheController.getInstance(mContext);
+        final InfosCacheController infos = InfosCacheController.getInstance(mContext);
+
+        pw.println("SlimRecents caches:");
+        RecentsCacheManager.getInstance(mContext).dump(pw, "  ");
+        icons.dump(pw, "  ");
+        thumbs.dump(pw, "  ");
+        infos.dump(pw, "  ");
+
+        if (args != null) {
+            for (String arg : args) {
+                if ("reset".equals(arg)) {
+                    icons.getStats().reset();
+                    thumbs.getStats().reset();
+                    infos.getStats().reset();
+                    pw.println("  Cache stats reset.");
+                    break;
+                }
+            }
         }
     }
 
@@ -637,11 +688,9 @@ public class RecentController implements RecentPanelView.OnExitListener,
 
     // Show the recent window.
     private void showRecents() {
-        try {
-            if (mIam.isInLockTaskMode()) {
-                return;
-            }
-        } catch (RemoteException e) {}
+        if (mSystemState.isInLockTaskMode()) {
+            return;
+        }
 
         mIsShowing = true;
         cancelClearAllWaiting();
@@ -738,39 +787,126 @@ public class RecentController implements RecentPanelView.OnExitListener,
             update();
         }
 
+        /**
+         * Full update on first observe and user switch.
+         */
         @Override
         protected void update() {
             hideRecents(false);
+            // The task list belongs to the previous user now.
+            RecentTasksModel.getInstance(mContext).invalidate();
+
+            updateLayoutManager();
+            updateExpandedMode();
+            updateGravity();
+            updatePanelColor();
+            updateScaleFactor();
+            if (mRecentPanelView != null) {
+                /*mRecentPanelView.setOneHandMode(Settings.Global.getString(
+                        resolver, Settings.Global.SINGLE_HAND_MODE));*/
+                mRecentPanelView.setCurrentFavorites(Settings.System.getStringForUser(
+                        mContext.getContentResolver(), Settings.System.RECENT_PANEL_FAVORITES,
+                        UserHandle.USER_CURRENT));
+                updateCardColor();
+                updateScreenPinning();
+                updateMaxApps();
+                updateCornerRadius();
+                updateBlackList();
+            }
+            updateIconPack();
+            updateUserSetup();
 
-            ContentResolver resolver = mContext.getContentResolver();
+            // force a new preloading on next Recents call after boot or a settings change
+            // to refresh the panel before the user shows it again.
+            mIsPreloaded = false;
+        }
 
+        /**
+         * Only do the work the changed setting needs.
+         */
+        @Override
+        protected void update(Uri uri) {
+            if (uri == null) {
+                update();
+                return;
+            }
+            final String key = uri.getLastPathSegment();
+            hideRecents(false);
+            if (Settings.System.RECENT_PANEL_GRAVITY.equals(key)) {
+                updateGravity();
+            } else if (Settings.System.RECENT_PANEL_SCALE_FACTOR.equals(key)) {
+                updateScaleFactor();
+            } else if (Settings.System.RECENT_PANEL_EXPANDED_MODE.equals(key)) {
+                updateLayoutManager();
+                updateExpandedMode();
+            } else if (Settings.System.RECENT_PANEL_BG_COLOR.equals(key)) {
+                updatePanelColor();
+            } else if (Settings.System.RECENT_CARD_BG_COLOR.equals(key)) {
+                updateCardColor();
+            } else if (Settings.System.SLIM_RECENTS_ICON_PACK.equals(key)) {
+                updateIconPack();
+            } else if (Settings.System.LOCK_TO_APP_ENABLED.equals(key)) {
+                updateScreenPinning();
+            } else if (Settings.System.RECENTS_MAX_APPS.equals(key)) {
+                updateMaxApps();
+            } else if (Settings.System.SLIM_RECENTS_CORNER_RADIUS.equals(key)) {
+                updateCornerRadius();
+            } else if (Settings.System.SLIM_RECENTS_BLACKLIST_VALUES.equals(key)) {
+                updateBlackList();
+            } else if (Settings.Global.DEVICE_PROVISIONED.equals(key)
+                    || Settings.Secure.USER_SETUP_COMPLETE.equals(key)) {
+                updateUserSetup();
+            } else {
+                update();
+                return;
+            }
+            // Refresh the panel on next Recents call.
+            mIsPreloaded = false;
+        }
+
+        private void updateLayoutManager() {
             int expandMode = Settings.System.getIntForUser(
-                        resolver, Settings.System.RECENT_PANEL_EXPANDED_MODE,
+                        mContext.getContentResolver(), Settings.System.RECENT_PANEL_EXPANDED_MODE,
                         RecentPanelView.EXPANDED_MODE_NEVER,
                         UserHandle.USER_CURRENT);
             mLayoutManager =
                     new CacheMoreCardsLayoutManager(mContext, mWindowManager, expandMode);
             mLayoutManager.setReverseLayout(true);
             mCardRecyclerView.setLayoutManager(mLayoutManager);
+        }
+
+        private void updateExpandedMode() {
+            if (mRecentPanelView != null) {
+                mRecentPanelView.setExpandedMode(Settings.System.getIntForUser(
+                        mContext.getContentResolver(), Settings.System.RECENT_PANEL_EXPANDED_MODE,
+                        RecentPanelView.EXPANDED_MODE_NEVER,
+                        UserHandle.USER_CURRENT));
+            }
+        }
 
+        private void updateGravity() {
             // Get user gravity.
             mUserGravity = Settings.System.getIntForUser(
-                    resolver, Settings.System.RECENT_PANEL_GRAVITY, Gravity.END,
-                    UserHandle.USER_CURRENT);
+                    mContext.getContentResolver(), Settings.System.RECENT_PANEL_GRAVITY,
+                    Gravity.END, UserHandle.USER_CURRENT);
+            // Set main gravity and background images.
+            setGravityAndImageResources();
+        }
 
-            // Update colors in RecentPanelView
-            mPanelColor = Settings.System.getIntForUser(resolver,
+        private void updatePanelColor() {
+            mPanelColor = Settings.System.getIntForUser(mContext.getContentResolver(),
                     Settings.System.RECENT_PANEL_BG_COLOR, 0x763367d6,
                     UserHandle.USER_CURRENT);
             mWarningColor = (0xff000000 | mPanelColor);
-
-            // Set main gravity and background images.
+            // Set backgrounds and empty recent image color.
             setGravityAndImageResources();
+        }
 
+        private void updateScaleFactor() {
             // Get user scale factor.
             float scaleFactor = Settings.System.getIntForUser(
-                    resolver, Settings.System.RECENT_PANEL_SCALE_FACTOR, 115,
-                    UserHandle.USER_CURRENT) / 100.0f;
+                    mContext.getContentResolver(), Settings.System.RECENT_PANEL_SCALE_FACTOR,
+                    115, UserHandle.USER_CURRENT) / 100.0f;
             // If changed set new scalefactor, rebuild the recent panel
             // and notify RecentPanelView about new value.
             if (scaleFactor != mScaleFactor) {
@@ -779,71 +915,92 @@ public class RecentController implements RecentPanelView.OnExitListener,
                 CacheController.getInstance(mContext, null).clearCache();
                 mIconsHandler.refresh();
                 mIconsHandler.setScaleFactor(scaleFactor);
+                updateIconDiskCacheConfig();
                 //ThumbnailsCacheController.getInstance(mContext).clearCache();
             }
-
             if (mRecentPanelView != null) {
                 mRecentPanelView.setScaleFactor(mScaleFactor);
-                mRecentPanelView.setExpandedMode(Settings.System.getIntForUser(
-                        resolver, Settings.System.RECENT_PANEL_EXPANDED_MODE,
-                        RecentPanelView.EXPANDED_MODE_NEVER,
-                        UserHandle.USER_CURRENT));
-                /*mRecentPanelView.setOneHandMode(Settings.Global.getString(
-                        resolver, Settings.Global.SINGLE_HAND_MODE));*/
-                mRecentPanelView.setCardColor(Settings.System.getIntForUser(
-                        resolver, Settings.System.RECENT_CARD_BG_COLOR, 0x00ffffff,
-                        UserHandle.USER_CURRENT));
-                mRecentPanelView.setCurrentFavorites(Settings.System.getStringForUser(
-                        resolver, Settings.System.RECENT_PANEL_FAVORITES,
-                        UserHandle.USER_CURRENT));
-                mRecentPanelView.isScreenPinningEnabled(Settings.System.getIntForUser(
-                        resolver, Settings.System.LOCK_TO_APP_ENABLED, 0,
-                        UserHandle.USER_CURRENT) == 1);
-                mRecentPanelView.setMaxAppsToLoad(Settings.System.getIntForUser(
-                        resolver, Settings.System.RECENTS_MAX_APPS, 15,
-                        UserHandle.USER_CURRENT));
-                float cornerRadius = Converter.floatDpToPx(mContext, 5/*dp*/);
-                mRecentPanelView.setCornerRadius(Settings.System.getIntForUser(
-                        resolver, Settings.System.SLIM_RECENTS_CORNER_RADIUS, 1,
-                        UserHandle.USER_CURRENT) == 1 ? cornerRadius : 0f);
-                mRecentPanelView.setBlackList(Settings.System.getStringForUser(
-                        resolver, Settings.System.SLIM_RECENTS_BLACKLIST_VALUES,
-                        UserHandle.USER_CURRENT));
             }
+        }
 
-            mRecentContent.setElevation(50);
+        private void updateCardColor() {
+            mRecentPanelView.setCardColor(Settings.System.getIntForUser(
+                    mContext.getContentResolver(), Settings.System.RECENT_CARD_BG_COLOR,
+                    0x00ffffff, UserHandle.USER_CURRENT));
+        }
 
-            int backgroundColor = mPanelColor;
-            if (backgroundColor == 0x00ffffff) {
-                backgroundColor = mContext.getResources().getColor(R.color.recent_background);
-            }
-            mRecentContent.setBackgroundColor(backgroundColor);
+        private void updateScreenPinning() {
+            mRecentPanelView.isScreenPinningEnabled(Settings.System.getIntForUser(
+                    mContext.getContentResolver(), Settings.System.LOCK_TO_APP_ENABLED, 0,
+                    UserHandle.USER_CURRENT) == 1);
+        }
+
+        private void updateMaxApps() {
+            mRecentPanelView.setMaxAppsToLoad(Settings.System.getIntForUser(
+                    mContext.getContentResolver(), Settings.System.RECENTS_MAX_APPS, 15,
+                    UserHandle.USER_CURRENT));
+        }
+
+        private void updateCornerRadius() {
+            float cornerRadius = Converter.floatDpToPx(mContext, 5/*dp*/);
+            mRecentPanelView.setCornerRadius(Settings.System.getIntForUser(
+                    mContext.getContentResolver(), Settings.System.SLIM_RECENTS_CORNER_RADIUS,
+                    1, UserHandle.USER_CURRENT) == 1 ? cornerRadius : 0f);
+        }
+
+        private void updateBlackList() {
+            mRecentPanelView.setBlackList(Settings.System.getStringForUser(
+                    mContext.getContentResolver(), Settings.System.SLIM_RECENTS_BLACKLIST_VALUES,
+                    UserHandle.USER_CURRENT));
+        }
 
-            String currentIconPack = Settings.System.getString(resolver,
+        private void updateIconPack() {
+            String currentIconPack = Settings.System.getString(mContext.getContentResolver(),
                 Settings.System.SLIM_RECENTS_ICON_PACK);
+            if (mIconPackLoaded && TextUtils.equals(mCurrentIconPack, currentIconPack)) {
+                return;
+            }
+            mIconPackLoaded = true;
             CacheController.getInstance(mContext, null).clearCache();
             mIconsHandler.updatePrefs(currentIconPack);
+            mCurrentIconPack = currentIconPack;
+            updateIconDiskCacheConfig();
+        }
 
+        private void updateUserSetup() {
+            ContentResolver resolver = mContext.getContentResolver();
             mIsUserSetup = Settings.Global.getInt(resolver,
                     Settings.Global.DEVICE_PROVISIONED, 0) != 0
                     && Settings.Secure.getInt(resolver,
                     Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
-
-            // force a new preloading on next Recents call after boot or a settings change
-            // to refresh the panel before the user shows it again.
-            mIsPreloaded = false;
         }
     }
 
+    /**
+     * Memory cache flushes keep the disk cached icons as long as
+     * icon pack, density and scale factor did not change.
+     */
+    private void updateIconDiskCacheConfig() {
+        IconDiskCache.getInstance(mContext).setIconConfig(mCurrentIconPack,
+                mConfiguration.densityDpi, mScaleFactor);
+    }
+
     public LinearLayoutManager getLayoutManager() {
         return (LinearLayoutManager) mLayoutManager;
     }
 
     public boolean onConfigurationChanged(Configuration newConfig) {
+        // Before the density check updates mConfiguration, and before its
+        // preload stores labels under the locale of the infos cache.
+        if (!mConfiguration.getLocales().equals(newConfig.getLocales())) {
+            InfosCacheController.getInstance(mContext).onLocalesChanged(newConfig.getLocales());
+        }
         if (mConfiguration.densityDpi != newConfig.densityDpi) {
             hideRecents(true);
             evictAllCaches();
             mIconsHandler.onDpiChanged(mContext);
+            mConfiguration.updateFrom(newConfig);
+            updateIconDiskCacheConfig();
             rebuildRecentsScreen();
             preloadRecentApps();
         }
@@ -1009,22 +1166,19 @@ public class RecentController implements RecentPanelView.OnExitListener,
 
     public boolean startMultiWindow() {
         SystemServicesProxy ssp = SystemServicesProxy.getInstance(mContext);
-        ActivityManager.RunningTaskInfo runningTask =
-                ActivityManagerWrapper.getInstance().getRunningTask();
+        ActivityManager.RunningTaskInfo runningTask = mSystemState.getRunningTask();
         if (runningTask == null) {
             return false;
         }
         final int activityType = runningTask.configuration.windowConfiguration.getActivityType();
-        boolean screenPinningActive = ActivityManagerWrapper.getInstance().isScreenPinningActive();
+        boolean screenPinningActive = mSystemState.isScreenPinningActive();
         boolean isRunningTaskInHomeOrRecentsStack =
                 activityType == ACTIVITY_TYPE_HOME || activityType == ACTIVITY_TYPE_RECENTS;
         if (isRunningTaskInHomeOrRecentsStack || screenPinningActive) {
             return false;
         }
         int createMode = ActivityManager.SPLIT_SCREEN_CREATE_MODE_TOP_OR_LEFT;
-        Point realSize = new Point();
-        mContext.getSystemService(DisplayManager.class).getDisplay(Display.DEFAULT_DISPLAY)
-                .getRealSize(realSize);
+        Point realSize = mSystemState.getDisplayRealSize();
         boolean isLandscape = mContext.getResources().getConfiguration().orientation ==
                 Configuration.ORIENTATION_LANDSCAPE;
         // dock the stack to half the screen
@@ -1050,7 +1204,7 @@ public class RecentController implements RecentPanelView.OnExitListener,
     private void openLastApptoBottom() {
         int taskid = 0;
         boolean doWeHaveAtask = true;
-        ActivityManager.RunningTaskInfo lastTask = getLastTask(mAm);
+        ActivityManager.RunningTaskInfo lastTask = getLastTask();
         if (lastTask != null) {
             //available task in this stack, we can dock it to the other side
             taskid = lastTask.id;
@@ -1133,10 +1287,10 @@ public class RecentController implements RecentPanelView.OnExitListener,
                 R.anim.recent_screen_fade_out);
     }
 
-    private ActivityManager.RunningTaskInfo getLastTask(final ActivityManager am) {
-        final String defaultHomePackage = resolveCurrentLauncherPackage();
-        List<ActivityManager.RunningTaskInfo> tasks = am.getRunningTasks(5);
-        for (int i = 1; i < tasks.size(); i++) {
+    private ActivityManager.RunningTaskInfo getLastTask() {
+        final String defaultHomePackage = mSystemState.getLauncherPackage();
+        List<ActivityManager.RunningTaskInfo> tasks = mSystemState.getRunningTasks();
+        for (int i = 1; i < Math.min(tasks.size(), 5); i++) {
             String packageName = tasks.get(i).topActivity.getPackageName();
             if (!packageName.equals(defaultHomePackage)
                     && !packageName.equals(mContext.getPackageName())
@@ -1147,14 +1301,6 @@ public class RecentController implements RecentPanelView.OnExitListener,
         return null;
     }
 
-    private String resolveCurrentLauncherPackage() {
-        final Intent launcherIntent = new Intent(Intent.ACTION_MAIN)
-                .addCategory(Intent.CATEGORY_HOME);
-        final PackageManager pm = mContext.getPackageManager();
-        final ResolveInfo launcherInfo = pm.resolveActivity(launcherIntent, 0);
-        return launcherInfo.activityInfo.packageName;
-    }
-
     private class CacheMoreCardsLayoutManager extends LinearLayoutManager {
         private Context context;
         private WindowManager mWindowManager;
@@ -1267,29 +1413,22 @@ public class RecentController implements RecentPanelView.OnExitListener,
                     // Stop the loader immediately when the UI is no longer visible
                     cancelPreloadRecentApps();
                     break;
-                case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
-                case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
-                    break;
-                case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
-                    trimCaches(false);
-                    break;
-                case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
-                    // We are going to be low on memory
-                    trimCaches(true);
-                    break;
-                case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
                 case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
-                    // We are low on memory, so release everything
+                    // We are going to be killed, so release everything
+                    // including the soft tier.
                     evictAllCaches();
                     break;
                 default:
+                    // Every other level gives back a part of our caches. Even on
+                    // RUNNING_CRITICAL trimmed entries stay softly referenced.
+                    trimCaches(RecentsCacheManager.getKeepPercent(level));
                     break;
             }
         }
 
         @Override
         public void onLowMemory() {
-            // onTrimMemory(TRIM_MEMORY_COMPLETE);
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
         }
 
         @Override
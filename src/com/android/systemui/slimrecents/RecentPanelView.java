@@ -53,6 +53,7 @@ import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
@@ -60,7 +61,10 @@ import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.ViewHolder;
 import android.support.v7.widget.helper.ItemTouchHelper;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.accessibility.AccessibilityEvent;
 //import android.view.Gravity;
 //import android.view.MotionEvent;
@@ -78,12 +82,10 @@ import com.android.systemui.shared.system.ActivityOptionsCompat;
 import com.android.systemui.recents.misc.SystemServicesProxy;
 import com.android.systemui.slimrecents.ExpandableCardAdapter.ExpandableCard;
 import com.android.systemui.slimrecents.ExpandableCardAdapter.OptionsItem;
-import com.android.systemui.stackdivider.WindowManagerProxy;
 import com.android.systemui.statusbar.policy.NextAlarmController;
 import com.android.systemui.statusbar.policy.NextAlarmController.NextAlarmChangeCallback;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 
 import java.util.ArrayList;
 import android.util.ArraySet;
@@ -167,6 +169,19 @@ public class RecentPanelView implements NextAlarmChangeCallback {
 
     private IconsHandler mIconsHandler;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Cards we assume to be visible before the first layout.
+    private static final int DEFAULT_VISIBLE_CARDS = 6;
+    // Adapter positions of the visible cards, icons of these cards load first.
+    private volatile int mFirstVisiblePosition = 0;
+    private volatile int mLastVisiblePosition = DEFAULT_VISIBLE_CARDS - 1;
+
+    private final ThumbnailPrefetcher mThumbnailPrefetcher;
+
+    // Cancellation scope of the running or last load pass.
+    private LoadScope mLoadScope;
+
     private int mMediaColor = -1;
     private boolean mMediaPlaying;
     private String mMediaPackageName = "";
@@ -193,23 +208,44 @@ public class RecentPanelView implements NextAlarmChangeCallback {
     private class RecentCard extends ExpandableCard {
 
         TaskDescription task;
+        // Queued or running icon load of this card.
+        volatile RecentsTaskScheduler.Job iconJob;
 
         private RecentCard(TaskDescription task) {
             super(task.getLabel(), null);
+            this.context = mContext;
+            this.task = task;
+            createListenersAndOptions();
             setTask(task);
         }
 
+        /**
+         * Wether this card can show the task of a new load pass
+         * instead of building a new card.
+         */
+        private boolean canReuseFor(TaskDescription newTask) {
+            return task.persistentTaskId == newTask.persistentTaskId
+                    && task.taskId == newTask.taskId
+                    && TextUtils.equals(task.identifier, newTask.identifier);
+        }
+
+        /**
+         * Bind the card to the task of the current load pass. The listeners
+         * always act on the current task, so they are created only once.
+         */
         private void setTask(TaskDescription task) {
             this.task = task;
             this.appName = task.getLabel();
             updateExpandState();
 
-            this.context = mContext;
             this.identifier = task.identifier;
 
             this.persistentTaskId = task.persistentTaskId;
             this.packageName = task.packageName;
             this.favorite = task.getIsFavorite();
+        }
+
+        private void createListenersAndOptions() {
             this.appIconClickListener = new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
@@ -221,7 +257,10 @@ public class RecentPanelView implements NextAlarmChangeCallback {
                 public boolean onLongClick(View v) {
                     favorite = !favorite;
                     handleFavoriteEntry(task);
-                    mCardAdapter.notifyItemChanged(index);
+                    final int position = mCardAdapter.getCardPosition(RecentCard.this);
+                    if (position >= 0) {
+                        mCardAdapter.notifyItemChanged(position);
+                    }
                     return true;
                 }
             };
@@ -254,7 +293,8 @@ public class RecentPanelView implements NextAlarmChangeCallback {
             this.hideOptionsListener = new ExpandableCardAdapter.HideOptionsListener() {
                 @Override
                 public void onHideOptions(int index) {
-                    hideOptions(index);
+                    // The index of the last bind may be outdated.
+                    hideOptions(mCardAdapter.getCardPosition(RecentCard.this));
                 }
             };
 
@@ -274,7 +314,7 @@ public class RecentPanelView implements NextAlarmChangeCallback {
                     } else if (id == OPTION_KILL) {
                         if (RecentController.killAppLongClick(
                                 mContext, task.packageName, task.persistentTaskId)) {
-                            mCardAdapter.removeCard(index);
+                            mCardAdapter.removeCard(RecentCard.this);
                             removeApplication(task);
                         }
                         return;
@@ -335,7 +375,9 @@ public class RecentPanelView implements NextAlarmChangeCallback {
             /*noIcon = mExpandedMode != EXPANDED_MODE_NEVER
                     && isTopTask && !screenPinningEnabled;*/
             pinAppIcon = isTopTask && screenPinningEnabled;
-            custom = mContext.getDrawable(R.drawable.ic_slimrec_pin_app);
+            if (custom == null) {
+                custom = mContext.getDrawable(R.drawable.ic_slimrec_pin_app);
+            }
         }
 
         private Intent getAppInfoIntent() {
@@ -360,7 +402,71 @@ public class RecentPanelView implements NextAlarmChangeCallback {
     }
 
 
+    /**
+     * What a #link:CardLoader pass resolved for one card in background.
+     * The card may be shown already, so it is changed on the main thread
+     * only, see #link:CardLoader applyLoadedCard.
+     */
+    private static class LoadedCard {
+        final RecentCard card;
+        final TaskDescription task;
+        // Cached app icon, null if it is loaded async.
+        Drawable appIcon;
+        boolean loadThumbnail;
+
+        LoadedCard(RecentCard card, TaskDescription task) {
+            this.card = card;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Icons of visible cards get the highest priority, the others
+     * lose priority with their distance to the visible cards.
+     */
+    private int getIconPriority(int position) {
+        final int first = mFirstVisiblePosition;
+        final int last = mLastVisiblePosition;
+        int distance = 0;
+        if (position < first) {
+            distance = first - position;
+        } else if (position > last) {
+            distance = position - last;
+        }
+        return RecentsTaskScheduler.PRIORITY_HIGH
+                + Math.min(distance, RecentsTaskScheduler.PRIORITY_LOW);
+    }
+
+    /**
+     * Track the visible cards and reorder the queued icon loads if they changed.
+     */
+    private void updateVisiblePositions() {
+        final LinearLayoutManager lm =
+                (LinearLayoutManager) mCardRecyclerView.getLayoutManager();
+        if (lm == null) {
+            return;
+        }
+        final int first = lm.findFirstVisibleItemPosition();
+        final int last = lm.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION
+                || (first == mFirstVisiblePosition && last == mLastVisiblePosition)) {
+            return;
+        }
+        mFirstVisiblePosition = first;
+        mLastVisiblePosition = last;
+        final int count = mCardAdapter.getItemCount();
+        for (int i = 0; i < count; i++) {
+            final RecentsTaskScheduler.Job job = ((RecentCard) mCardAdapter.getCard(i)).iconJob;
+            if (job != null) {
+                job.setPriority(getIconPriority(i));
+            }
+        }
+    }
+
     private void hideOptions(int index) {
+        if (index < 0) {
+            return;
+        }
         ExpandableCardAdapter.ViewHolder vh =
                 (ExpandableCardAdapter.ViewHolder) mCardRecyclerView
                 .findViewHolderForLayoutPosition(index);
@@ -407,6 +513,15 @@ public class RecentPanelView implements NextAlarmChangeCallback {
 
         setupItemTouchHelper();
 
+        mCardRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                updateVisiblePositions();
+            }
+        });
+        mThumbnailPrefetcher = new ThumbnailPrefetcher(mContext);
+        mCardRecyclerView.addOnScrollListener(mThumbnailPrefetcher);
+
         mNextAlarmController = Dependency.get(NextAlarmController.class);
         mNextAlarmController.addCallback(this);
     }
@@ -502,7 +617,7 @@ public class RecentPanelView implements NextAlarmChangeCallback {
                 areOptionsHidden = false;
 
                 boolean wasDocked = false;
-                int dockSide = WindowManagerProxy.getInstance().getDockSide();
+                int dockSide = RecentsSystemState.getInstance(mContext).getDockSide();
                 if (dockSide != WindowManager.DOCKED_INVALID) {
                     wasDocked = true;
                 }
@@ -658,12 +773,9 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         // Refresh activity info on next app load if we removed the app
         // we can still keep icons
         InfosCacheController.getInstance(mContext).removeInfos(td.componentName);
-        /* we could also refresh thumbs but this will slow down panel loading e.g. after a
-            clear all apps action, it's not worth it considering that even an old thumb
-            is good to recognize the app. A better solution would be to add a "last time"
-            thumb load check and refresh thumbs after some time.
-        */
-        // ThumbnailsCacheController.getInstance(mContext).removeThumb(td.identifier);
+        // The task is gone, so is its screenshot.
+        ThumbnailsCacheController.getInstance(mContext).removeThumb(
+                String.valueOf(td.persistentTaskId));
 
         // All apps were removed? Close recents panel.
         if (mCardAdapter.getItemCount() == 0) {
@@ -759,23 +871,33 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         if (component != null) {
             cn = component.flattenToString();
         }
-        ActivityInfo info =
-                InfosCacheController.getInstance(mContext)
-                .getInfosFromMemCache(cn);
+        final InfosCacheController infosCache = InfosCacheController.getInstance(mContext);
+        ActivityInfo info = infosCache.getInfosFromMemCache(cn);
         if (info == null) {
+            if (infosCache.isKnownUnresolvable(cn)) {
+                // Disabled or uninstalled component, we asked not long ago.
+                return null;
+            }
             final ResolveInfo resolveInfo = mPm.resolveActivity(intent, 0);
             if (resolveInfo != null) {
                 info = resolveInfo.activityInfo;
                 if (component != null) {
-                    InfosCacheController.getInstance(mContext)
-                            .addInfosToMemoryCache(cn, info);
+                    infosCache.addInfosToMemoryCache(cn, info);
                 }
+            } else if (component != null) {
+                infosCache.markUnresolvable(cn);
             }
         }
         if (info != null) {
             String title = td.getLabel();
+            if (title == null) {
+                title = infosCache.getLabelFromMemCache(cn);
+            }
             if (title == null) {
                 title = info.loadLabel(mPm).toString();
+                if (component != null) {
+                    infosCache.addLabelToMemoryCache(cn, title);
+                }
             }
             String identifier = TASK_PACKAGE_IDENTIFIER;
             if (component != null) {
@@ -797,6 +919,44 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         return null;
     }
 
+    /**
+     * Create a TaskDescription from what our memory caches already know,
+     * returning null if the activity info or the title is not cached.
+     * Never asks PackageManager, so it is safe on the main thread.
+     */
+    private TaskDescription createCachedTaskDescription(
+            ActivityManager.RecentTaskInfo recentInfo) {
+        final ComponentName component = recentInfo.origActivity != null
+                ? recentInfo.origActivity : recentInfo.baseIntent.getComponent();
+        if (component == null) {
+            return null;
+        }
+        final String cn = component.flattenToString();
+        final InfosCacheController infosCache = InfosCacheController.getInstance(mContext);
+        final ActivityInfo info = infosCache.getInfosFromMemCache(cn);
+        if (info == null) {
+            return null;
+        }
+        final ActivityManager.TaskDescription td = recentInfo.taskDescription;
+        String title = td != null ? td.getLabel() : null;
+        if (title == null) {
+            title = infosCache.getLabelFromMemCache(cn);
+        }
+        if (TextUtils.isEmpty(title)) {
+            return null;
+        }
+        final String identifier = TASK_PACKAGE_IDENTIFIER + cn;
+        final TaskDescription item = new TaskDescription(recentInfo.id,
+                recentInfo.persistentId, info, recentInfo.baseIntent, info.packageName, cn,
+                identifier, recentInfo.description, mCurrentFavoritesSplit.contains(identifier),
+                EXPANDED_STATE_UNKNOWN, td != null ? td.getPrimaryColor() : 0);
+        item.setLabel(title);
+        if (mMediaPlaying && item.packageName.toLowerCase().equals(mMediaPackageName)) {
+            item.setisMediaPlayingTask(true);
+        }
+        return item;
+    }
+
     /**
      * Load all tasks we want.
      */
@@ -809,8 +969,11 @@ public class RecentPanelView implements NextAlarmChangeCallback {
 
         // We have all needed tasks now.
         // Let us load the cards for it in background.
-        final CardLoader cardLoader = new CardLoader();
-        cardLoader.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+        mLoadScope = new LoadScope();
+        mThumbnailPrefetcher.setScope(mLoadScope);
+        final CardLoader cardLoader = new CardLoader(mLoadScope);
+        cardLoader.executeOnExecutor(RecentsTaskScheduler.getInstance().getExecutor(
+                RecentsTaskScheduler.LANE_TASKS, RecentsTaskScheduler.PRIORITY_HIGH));
     }
 
     /**
@@ -846,6 +1009,10 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         }
     }
 
+    private static boolean isTopTask(TaskDescription task) {
+        return (task.getExpandedState() & EXPANDED_STATE_TOPTASK) != 0;
+    }
+
     /**
      * We are holding a list of user expanded state of apps.
      * Get expanded state of the app.
@@ -875,14 +1042,17 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         }
     }
 
-    protected void notifyDataSetChanged(boolean forceupdate) {
-        if (forceupdate || !mController.isShowing()) {
-            mCardAdapter.notifyDataSetChanged();
-        }
-    }
-
     protected void setCancelledByUser(boolean cancelled) {
         mCancelledByUser = cancelled;
+        if (cancelled) {
+            // Nobody will see the icons and screenshots of this pass anymore.
+            if (mLoadScope != null) {
+                mLoadScope.cancel();
+            }
+            if (mThumbnailPrefetcher != null) {
+                mThumbnailPrefetcher.reset();
+            }
+        }
     }
 
     protected boolean atLeastOneTaskAvailable() {
@@ -901,9 +1071,10 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         mExpandedMode = mode;
         boolean fastMode =
                 mode == EXPANDED_MODE_NEVER;
-        /*if (fastMode) {
+        if (fastMode) {
             ThumbnailsCacheController.getInstance(mContext).clearCache();
-        }*/
+        }
+        mThumbnailPrefetcher.setEnabled(!fastMode);
         mCardAdapter.setFastMode(fastMode);
     }
 
@@ -1016,11 +1187,50 @@ public class RecentPanelView implements NextAlarmChangeCallback {
      *       #link:RecentAppIcon and #link AppIconLoader
      */
     private class CardLoader extends AsyncTask<Void,
-            RecentCard, Boolean> {
+            LoadedCard, Boolean> {
+
+        // Ranks of our TaskRanker rules, see createRanker.
+        private static final int RANK_TOP_TASK    = 0;
+        private static final int RANK_FIRST_TASKS = 1;
+
+        // Cards we publish at once to fill the first screen.
+        private static final int FIRST_BATCH_SIZE = 6;
+        // Most tasks may be held back until the ranker finishes, so don't
+        // wait longer than a frame for the first batch to fill up.
+        private static final long FIRST_BATCH_TIMEOUT_MS = 16;
+        // Afterwards we publish at most once per frame.
+        private static final long BATCH_INTERVAL_MS = 16;
 
         private int mCounter;
 
-        public CardLoader() {
+        // Cards not yet handed over to the adapter.
+        private final ArrayList<LoadedCard> mPendingCards = new ArrayList<>();
+        // Icons missing in the cache, queued with the next batch of cards.
+        private final ArrayList<AppIconLoader.IconLoad> mPendingIconLoads = new ArrayList<>();
+        private final ArrayList<RecentCard> mPendingIconCards = new ArrayList<>();
+        private boolean mFirstBatchPublished;
+        private long mLastPublishTime;
+        // When the oldest pending card was added.
+        private long mPendingSince;
+
+        // Cards of the last pass by persistent task id. Unchanged tasks
+        // get their old card back instead of a new one.
+        private final SparseArray<RecentCard> mPreviousCards = new SparseArray<>();
+        // Placeholder cards we show until the first batch is loaded.
+        private final SparseArray<RecentCard> mSkeletonCards = new SparseArray<>();
+        private boolean mHydrated;
+        // Cards published so far, main thread only.
+        private final ArrayList<RecentCard> mLoadedCards = new ArrayList<>();
+        private final SparseBooleanArray mLoadedTaskIds = new SparseBooleanArray();
+
+        private final LoadScope mScope;
+
+        public CardLoader(LoadScope scope) {
+            mScope = scope;
+        }
+
+        private boolean isLoadCancelled() {
+            return isCancelled() || mScope.isCancelled();
         }
 
         @Override
@@ -1034,49 +1244,151 @@ public class RecentPanelView implements NextAlarmChangeCallback {
             // before cleaning up cards
             for (int i = 0; i < mCardAdapter.getItemCount(); i++) {
                 hideOptions(i);
+                final RecentCard card = (RecentCard) mCardAdapter.getCard(i);
+                mPreviousCards.put(card.persistentTaskId, card);
             }
-            mCardAdapter.clearCards();
+            // The cards stay in the adapter until the pass loaded or dropped
+            // them, so unchanged cards keep their views.
             mController.resetTasks();
+
+            showSkeletonCards();
+        }
+
+        /**
+         * First phase: show placeholder cards for the first screen right away,
+         * built from the last known task list and our memory caches only.
+         * The load pass hydrates them afterwards, mostly the very same cards.
+         * So opening the panel never waits for PackageManager.
+         */
+        private void showSkeletonCards() {
+            final List<ActivityManager.RecentTaskInfo> recentTasks =
+                    RecentTasksModel.getInstance(mContext).peekRecentTasks();
+            if (recentTasks == null) {
+                return;
+            }
+            final ThumbnailsCacheController thumbsCache =
+                    ThumbnailsCacheController.getInstance(mContext);
+            final int max = Math.min(FIRST_BATCH_SIZE, mMaxAppsToLoad);
+            final ArrayList<RecentCard> cards = new ArrayList<>(max);
+            // Same order as the load pass will have. We never finish the ranker,
+            // held back tasks may still have an unknown task ranking before them.
+            final TaskRanker ranker = createRanker(max, new TaskRanker.Sink() {
+                @Override
+                public void onRanked(TaskDescription task, int rank) {
+                    cards.add(obtainSkeletonCard(task, thumbsCache));
+                }
+            });
+            // Main thread, so only trust a running task we know already.
+            // Without one we mark no top task, the load pass corrects it.
+            final ActivityManager.RunningTaskInfo runningTask =
+                    RecentsSystemState.getInstance(mContext).peekRunningTask();
+            for (int i = 0; i < recentTasks.size() && !ranker.isFull(); i++) {
+                final TaskDescription task = createCachedTaskDescription(recentTasks.get(i));
+                if (task == null) {
+                    // Unknown task, leave it and all after it to the load pass
+                    // so we don't show them in the wrong order.
+                    break;
+                }
+                // Last known expanded state, the load pass corrects it.
+                int state = getExpandedState(task);
+                if (i == 0 && runningTask != null
+                        && isRunningOnTop(recentTasks.get(i), runningTask)) {
+                    state |= EXPANDED_STATE_TOPTASK;
+                } else {
+                    state &= ~EXPANDED_STATE_TOPTASK;
+                }
+                task.setExpandedState(state);
+                ranker.offer(task);
+            }
+            if (cards.isEmpty()) {
+                return;
+            }
+            mCardAdapter.setCards(cards);
+            setVisibility();
+            taskLoaded();
+        }
+
+        private RecentCard obtainSkeletonCard(TaskDescription task,
+                ThumbnailsCacheController thumbsCache) {
+            final boolean topTask = isTopTask(task);
+            final RecentCard card = obtainCard(task);
+            card.setTask(task);
+            card.appName = getCardTitle(task, card);
+            final Drawable appIcon =
+                    CacheController.getInstance(mContext, /*mClearThumbOnEviction*/null)
+                    .getBitmapFromMemCache(task.identifier);
+            if (appIcon != null) {
+                card.appIcon = getCardIcon(task, appIcon, card);
+            }
+            if (!topTask && card.expanded && card.screenshot == null
+                    && mExpandedMode != EXPANDED_MODE_NEVER) {
+                card.screenshot = thumbsCache.getBitmapFromMemCache(
+                        String.valueOf(task.persistentTaskId));
+            }
+            setupCard(card, task);
+            mSkeletonCards.put(task.persistentTaskId, card);
+            return card;
         }
 
         @Override
         protected Boolean doInBackground(Void... params) {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
+            final boolean loaded = loadCards();
+            // Publish what is left, even if the user cancelled us.
+            publishPendingCards();
+            return loaded;
+        }
+
+        private boolean loadCards() {
             mCounter = 0;
-            int firstItems = 0;
-            final ArrayList<TaskDescription> mediaPlayingTasks = new ArrayList<>();
-            final ArrayList<TaskDescription> nonFavoriteTasks = new ArrayList<>();
+            int controllerTasks = 0;
+
+            // Top task first, then the first tasks, favorites, media playing
+            // tasks and all others, each group by recency.
+            final TaskRanker ranker = createRanker(mMaxAppsToLoad, new TaskRanker.Sink() {
+                @Override
+                public void onRanked(TaskDescription item, int rank) {
+                    if (rank == RANK_TOP_TASK) {
+                        addCard(item, true, false);
+                        mFirstTask = item;
+                        // The user is on this task right now, its cached screenshot
+                        // will be outdated the next time we need it.
+                        ThumbnailsCacheController.getInstance(mContext).removeThumb(
+                                String.valueOf(item.persistentTaskId));
+                    } else if (rank == RANK_FIRST_TASKS) {
+                        // FirstExpandedItems value forces to show always the app screenshot
+                        // if the old state is not known and the user has set expanded mode
+                        // to auto. Expand only if no expanded_mode_never.
+                        if (mExpandedMode != EXPANDED_MODE_NEVER) {
+                            item.setExpandedState(
+                                    item.getExpandedState() | EXPANDED_STATE_BY_SYSTEM);
+                        }
+                        addCard(item, false, true);
+                    } else {
+                        addCard(item, false, false);
+                    }
+                }
+            });
 
             final List<ActivityManager.RecentTaskInfo> recentTasks = getAllRecentTasks();
 
             for (int i = 0; i < recentTasks.size(); i++) {
 
                 // If we reach max apps limit set by user, we are done
-                if (mCounter >= mMaxAppsToLoad) {
+                if (ranker.isFull()) {
                     break;
                 }
-                if (isCancelled() || isCancelledByUser()) {
+                if (isLoadCancelled()) {
                     mIsLoading = false;
                     return false;
                 }
 
                 final ActivityManager.RecentTaskInfo recentInfo = recentTasks.get(i);
 
-                final Intent intent = new Intent(recentInfo.baseIntent);
-                if (recentInfo.origActivity != null) {
-                    intent.setComponent(recentInfo.origActivity);
-                }
-
-                boolean topTask = i == 0;
-                if (topTask) {
-                    ActivityManager.RunningTaskInfo rTask = getRunningTask(mAm);
-                    if (rTask != null) {
-                        if (!rTask.baseActivity.getPackageName().equals(
-                                recentInfo.baseIntent.getComponent().getPackageName())) {
-                            topTask = false;
-                        }
-                    }
+                final boolean topTask = i == 0 && isRunningOnTop(recentInfo,
+                        RecentsSystemState.getInstance(mContext).getRunningTask());
+                if (i == 0) {
                     mController.isTopTaskInForeground(topTask);
                 }
 
@@ -1090,17 +1402,6 @@ public class RecentPanelView implements NextAlarmChangeCallback {
                     continue;
                 }
 
-                if (!topTask && !mBlacklist.isEmpty()
-                        && mBlacklist.contains(item.packageName)) {
-                    // skip this item and go to next iteration
-                    continue;
-                }
-
-                if (mCounter < 2) {
-                    // we need just the first 2 apps for double tap recents last app action
-                    mController.addTasks(item);
-                }
-
                 if (!mCurrentFavoritesSplit.isEmpty()
                         && mCurrentFavoritesSplit.contains(item.identifier)) {
                     item.setIsFavorite(true);
@@ -1110,144 +1411,313 @@ public class RecentPanelView implements NextAlarmChangeCallback {
                     item.setisMediaPlayingTask(true);
                 }
 
+                // User want to see actual running task. Set it here. On all other
+                // items we check if they were expanded from the user in last known
+                // recent app list and restore the state. This counts as well if
+                // expanded mode is always or never.
+                int oldState = getExpandedState(item);
                 if (topTask) {
-                    // User want to see actual running task. Set it here
-                    int oldState = getExpandedState(item);
-                    if ((oldState & EXPANDED_STATE_TOPTASK) == 0) {
-                        oldState |= EXPANDED_STATE_TOPTASK;
-                    }
-                    item.setExpandedState(oldState);
-                    addCard(item, true, false);
-                    mFirstTask = item;
+                    oldState |= EXPANDED_STATE_TOPTASK;
                 } else {
-                    // FirstExpandedItems value forces to show always the app screenshot
-                    // if the old state is not known and the user has set expanded mode to auto.
-                    // On all other items we check if they were expanded from the user
-                    // in last known recent app list and restore the state. This counts as well
-                    // if expanded mode is always or never.
-                    int oldState = getExpandedState(item);
-                    if ((oldState & EXPANDED_STATE_BY_SYSTEM) != 0) {
-                        oldState &= ~EXPANDED_STATE_BY_SYSTEM;
-                    }
-                    if ((oldState & EXPANDED_STATE_TOPTASK) != 0) {
-                        oldState &= ~EXPANDED_STATE_TOPTASK;
-                    }
-                    if (firstItems < mFirstExpandedItems) {
-                        //expand only if no expanded_mode_never
-                        if (mExpandedMode != EXPANDED_MODE_NEVER) {
-                            oldState |= EXPANDED_STATE_BY_SYSTEM;
-                        }
-                        item.setExpandedState(oldState);
-                        // The first tasks are always added to the task list.
-                        addCard(item, false, true);
-                    } else {
-                        /*if (mExpandedMode == EXPANDED_MODE_ALWAYS) {
-                            oldState |= EXPANDED_STATE_BY_SYSTEM;
-                        }*/
-                        item.setExpandedState(oldState);
-                        // Favorite tasks are added next. Media playing and non favorite
-                        // we hold for a short time in an extra list.
-                        if (item.getIsFavorite()) {
-                            addCard(item, false, false);
-                        } else if (item.isMediaPlayingTask()) {
-                            item.setisMediaPlayingTask(true);
-                            mediaPlayingTasks.add(item);
-                        } else {
-                            nonFavoriteTasks.add(item);
-                        }
-                    }
-                    firstItems++;
+                    oldState &= ~(EXPANDED_STATE_BY_SYSTEM | EXPANDED_STATE_TOPTASK);
                 }
-            }
+                item.setExpandedState(oldState);
 
-            // Add now the media playing tasks to the final task list.
-            for (TaskDescription item : mediaPlayingTasks) {
-                if (mCounter >= mMaxAppsToLoad) {
-                    break;
-                }
-                if (isCancelled() || isCancelledByUser()) {
-                    mIsLoading = false;
-                    return false;
+                if (ranker.offer(item) && controllerTasks < 2) {
+                    // we need just the first 2 apps for double tap recents last app action
+                    mController.addTasks(item);
+                    controllerTasks++;
                 }
-                addCard(item, false, false);
+                // The ranker may hold this task back, publish what is due anyway.
+                maybePublishPendingCards();
             }
-            // Add now the non favorite tasks to the final task list.
-            for (TaskDescription item : nonFavoriteTasks) {
-                if (mCounter >= mMaxAppsToLoad) {
-                    break;
-                }
-                if (isCancelled() || isCancelledByUser()) {
-                    mIsLoading = false;
-                    return false;
-                }
-                addCard(item, false, false);
+
+            if (isLoadCancelled()) {
+                mIsLoading = false;
+                return false;
             }
+            // Add now the held back tasks to the final task list.
+            ranker.finish();
 
+            // Let the infos cache grow if this pass did not fit into it.
+            InfosCacheController.getInstance(mContext).onLoadPassFinished();
             return true;
         }
 
-        private void addCard(final TaskDescription task, boolean topTask, boolean loadBitmap) {
-            final RecentCard card = new RecentCard(task);
+        /**
+         * True if the most recent task is the task running on top. If we don't
+         * know the running task, we assume it is.
+         */
+        private boolean isRunningOnTop(ActivityManager.RecentTaskInfo recentInfo,
+                ActivityManager.RunningTaskInfo rTask) {
+            return rTask == null || rTask.baseActivity.getPackageName().equals(
+                    recentInfo.baseIntent.getComponent().getPackageName());
+        }
+
+        private TaskRanker createRanker(int limit, TaskRanker.Sink sink) {
+            final TaskRanker.Filter blacklist = TaskRanker.blacklist(mBlacklist);
+            return new TaskRanker(limit, sink)
+                    // The running task is shown even if it is blacklisted.
+                    .addFilter(task -> isTopTask(task) || blacklist.accept(task))
+                    .addRule(new TaskRanker.Rule() {
+                        private boolean mOffered;
+
+                        @Override
+                        public boolean matches(TaskDescription task) {
+                            // Only the most recent task can be the top task.
+                            mOffered = true;
+                            return isTopTask(task);
+                        }
 
-            //Set card title
-            card.appName = getCardTitle(task, card);
+                        @Override
+                        public boolean isExhausted() {
+                            return mOffered;
+                        }
+                    })
+                    .addRule(TaskRanker.firstTasks(mFirstExpandedItems))
+                    .addRule(TaskRanker.favorites())
+                    .addRule(TaskRanker.mediaPlaying());
+        }
+
+        /**
+         * Get the card of the last pass for the task if the task did not
+         * change, otherwise build a new one. A reused card may be shown,
+         * so it is not bound to the task here.
+         */
+        private RecentCard obtainCard(TaskDescription task) {
+            RecentCard card = mSkeletonCards.get(task.persistentTaskId);
+            if (card != null) {
+                mSkeletonCards.remove(task.persistentTaskId);
+            } else {
+                card = mPreviousCards.get(task.persistentTaskId);
+                mPreviousCards.remove(task.persistentTaskId);
+            }
+            if (card != null && card.canReuseFor(task)) {
+                return card;
+            }
+            return new RecentCard(task);
+        }
+
+        private void addCard(final TaskDescription task, boolean topTask, boolean loadBitmap) {
+            final RecentCard card = obtainCard(task);
+            final LoadedCard loaded = new LoadedCard(card, task);
 
             final Drawable appIcon =
                     CacheController.getInstance(mContext, /*mClearThumbOnEviction*/null)
                     .getBitmapFromMemCache(task.identifier);
             if (appIcon != null) {
-                card.appIcon = getCardIcon(task, appIcon, card);
-                postnotifyItemChanged(mCardRecyclerView, card);
+                card.iconJob = null;
+                loaded.appIcon = appIcon;
             } else {
-                AppIconLoader.getInstance(mContext).loadAppIcon(task.info,
+                // mCounter is the adapter position this card will get.
+                // A load still running from the last pass is joined, not repeated.
+                mPendingIconCards.add(card);
+                mPendingIconLoads.add(new AppIconLoader.IconLoad(task.info,
                         task.identifier, new AppIconLoader.IconCallback() {
                             @Override
                             public void onDrawableLoaded(Drawable drawable) {
+                                card.iconJob = null;
+                                if (mScope.isCancelled()) {
+                                    return;
+                                }
                                 card.appIcon = getCardIcon(task, drawable, card);
                                 postnotifyItemChanged(mCardRecyclerView, card);
                             }
-                }, mIconsHandler);
+                }, getIconPriority(mCounter)));
             }
             // skip thumbs loading process if fast mode enabled
-            if (mExpandedMode != EXPANDED_MODE_NEVER && !topTask && loadBitmap) {
-                new BitmapDownloaderTask(mContext,
-                        new DownloaderCallback() {
+            loaded.loadThumbnail = mExpandedMode != EXPANDED_MODE_NEVER && !topTask && loadBitmap;
+
+            mCounter++;
+            if (mPendingCards.isEmpty()) {
+                mPendingSince = SystemClock.uptimeMillis();
+            }
+            mPendingCards.add(loaded);
+            maybePublishPendingCards();
+        }
+
+        /**
+         * Bind the card to what the pass loaded for it. Main thread only,
+         * the card may be bound to a view already.
+         */
+        private void applyLoadedCard(LoadedCard loaded) {
+            final RecentCard card = loaded.card;
+            final TaskDescription task = loaded.task;
+            card.setTask(task);
+
+            //Set card title
+            card.appName = getCardTitle(task, card);
+
+            // Otherwise the icon callback sets it.
+            if (loaded.appIcon != null) {
+                card.appIcon = getCardIcon(task, loaded.appIcon, card);
+            }
+            if (loaded.loadThumbnail) {
+                loadThumbnail(task, card);
+            } else {
+                // A reused card may still hold the screenshot of the last pass.
+                card.screenshot = null;
+            }
+            setupCard(card, task);
+        }
+
+        private void setupCard(final RecentCard card, TaskDescription task) {
+            if (card.cardClickListener == null) {
+                card.cardClickListener = new View.OnClickListener() {
                     @Override
-                    public void onBitmapLoaded(Bitmap bitmap) {
-                        card.screenshot = bitmap;
-                        postnotifyItemChanged(mCardRecyclerView, card);
+                    public void onClick(View v) {
+                        startApplication(card.task);
                     }
-                }).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
-                        task.persistentTaskId);
+                };
             }
-            card.cardClickListener = new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    startApplication(task);
-                }
-            };
 
             // Set card color
             card.cardBackgroundColor = getCardBackgroundColor(task);
 
             //Set corner radius
             card.cornerRadius = mCornerRadius;
+        }
 
-            mCounter++;
-            publishProgress(card);
+        /**
+         * Publish the first screen of cards as one batch, or what we have
+         * after a frame, then the rest in chunks of at most one per frame.
+         * Also called while the ranker holds tasks back, so the first cards
+         * never wait for the whole pass.
+         */
+        private void maybePublishPendingCards() {
+            if (mPendingCards.isEmpty()) {
+                return;
+            }
+            if (!mFirstBatchPublished) {
+                if (mPendingCards.size() >= Math.min(FIRST_BATCH_SIZE, mMaxAppsToLoad)
+                        || SystemClock.uptimeMillis() - mPendingSince
+                                >= FIRST_BATCH_TIMEOUT_MS) {
+                    mFirstBatchPublished = true;
+                    publishPendingCards();
+                }
+                return;
+            }
+            if (SystemClock.uptimeMillis() - mLastPublishTime >= BATCH_INTERVAL_MS) {
+                publishPendingCards();
+            }
+        }
+
+        private void publishPendingCards() {
+            loadPendingIcons();
+            if (mPendingCards.isEmpty()) {
+                return;
+            }
+            publishProgress(mPendingCards.toArray(new LoadedCard[mPendingCards.size()]));
+            mPendingCards.clear();
+            mLastPublishTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Queue the missing icons of the pending cards as one batch, so the
+         * icon workers render them while the main thread lays out the cards.
+         */
+        private void loadPendingIcons() {
+            if (mPendingIconLoads.isEmpty()) {
+                return;
+            }
+            if (!mScope.isCancelled()) {
+                AppIconLoader.getInstance(mContext).loadAppIcons(
+                        mPendingIconLoads, mIconsHandler);
+                for (int i = 0; i < mPendingIconLoads.size(); i++) {
+                    final AppIconLoader.IconLoad load = mPendingIconLoads.get(i);
+                    mPendingIconCards.get(i).iconJob = load.getJob();
+                    mScope.add(load);
+                }
+            }
+            mPendingIconLoads.clear();
+            mPendingIconCards.clear();
+        }
+
+        /**
+         * Show the cached screenshot right away and only ask the system
+         * for a new one if we have none or it is stale.
+         */
+        private void loadThumbnail(TaskDescription task, final RecentCard card) {
+            final ThumbnailsCacheController thumbsCache =
+                    ThumbnailsCacheController.getInstance(mContext);
+            final String key = String.valueOf(task.persistentTaskId);
+            final Bitmap thumb = thumbsCache.getBitmapFromMemCache(key);
+            if (thumb != null) {
+                card.screenshot = thumb;
+            }
+            if (thumb != null && !thumbsCache.isStale(key)) {
+                return;
+            }
+            // A newer request for the same task supersedes a queued one.
+            final int persistentTaskId = task.persistentTaskId;
+            mScope.add(RecentsTaskScheduler.getInstance().submit(
+                    RecentsTaskScheduler.LANE_THUMBNAILS,
+                    RecentsTaskScheduler.PRIORITY_NORMAL, key, () -> {
+                if (mScope.isCancelled()) {
+                    return;
+                }
+                final Bitmap bitmap = loadThumbnail(persistentTaskId, mContext);
+                if (bitmap == null || mScope.isCancelled()) {
+                    // keep the old screenshot if we had one
+                    return;
+                }
+                thumbsCache.addBitmapToMemoryCache(key, bitmap);
+                mMainHandler.post(mScope.guard(() -> {
+                    card.screenshot = bitmap;
+                    postnotifyItemChanged(mCardRecyclerView, card);
+                }));
+            }));
         }
 
         @Override
-        protected void onProgressUpdate(RecentCard... card) {
-            mCardAdapter.addCard(card[0]);
+        protected void onProgressUpdate(LoadedCard... loadedCards) {
+            final boolean firstBatch = !mHydrated;
+            mHydrated = true;
+            dropRemovedCards();
+            for (LoadedCard loaded : loadedCards) {
+                applyLoadedCard(loaded);
+                mLoadedCards.add(loaded.card);
+                mLoadedTaskIds.put(loaded.card.persistentTaskId, true);
+            }
+            // The loaded cards replace the placeholders or the cards
+            // of the last pass. Only what changed is rebound.
+            mCardAdapter.setCards(getCardsWithUnloadedTail());
             // we have at least one task and card, so can show the panel while we
             // load more tasks and cards
-            if (mCounter == 1) {
+            if (firstBatch) {
                 setVisibility();
                 taskLoaded();
             }
         }
 
+        /**
+         * Forget the loaded cards the user removed meanwhile, so they
+         * don't come back with the next batch.
+         */
+        private void dropRemovedCards() {
+            for (int i = mLoadedCards.size() - 1; i >= 0; i--) {
+                if (mCardAdapter.getCardPosition(mLoadedCards.get(i)) < 0) {
+                    mLoadedCards.remove(i);
+                }
+            }
+        }
+
+        /**
+         * The cards loaded so far, followed by the shown cards not loaded
+         * yet. Those stay until the pass is done, so a card loaded by a
+         * later batch moves instead of being removed and inserted again.
+         */
+        private List<RecentCard> getCardsWithUnloadedTail() {
+            final ArrayList<RecentCard> cards = new ArrayList<>(mLoadedCards);
+            for (int i = 0; i < mCardAdapter.getItemCount(); i++) {
+                final RecentCard card = (RecentCard) mCardAdapter.getCard(i);
+                if (!mLoadedTaskIds.get(card.persistentTaskId)) {
+                    cards.add(card);
+                }
+            }
+            return cards;
+        }
+
         @Override
         protected void onPostExecute(Boolean loaded) {
             // If cancelled by system, log it and set task size
@@ -1257,8 +1727,14 @@ public class RecentPanelView implements NextAlarmChangeCallback {
                 Log.v(TAG, "card constructing was cancelled by system or user");
             }
 
-            // Notify arrayadapter that data set has changed
-            notifyDataSetChanged(true);
+            // Cards of tasks which are gone are not needed anymore.
+            mPreviousCards.clear();
+            mSkeletonCards.clear();
+            // Drop the old cards and placeholders the pass did not load.
+            dropRemovedCards();
+            mCardAdapter.setCards(mLoadedCards);
+            // Rebind the cards which changed after they were published.
+            mCardAdapter.notifyChangedCards();
             // Notfiy controller that tasks are completly loaded.
             mIsLoading = false;
             setVisibility();
@@ -1267,9 +1743,7 @@ public class RecentPanelView implements NextAlarmChangeCallback {
     }
 
     private List<ActivityManager.RecentTaskInfo> getAllRecentTasks() {
-        return mAm.getRecentTasks(ActivityManager.getMaxRecentTasksStatic(),
-                ActivityManager.SLIM_RECENTS);
-
+        return RecentTasksModel.getInstance(mContext).getRecentTasks();
     }
 
     private void updateCurrentQuietProfilesCache(int currentUserId) {
@@ -1308,7 +1782,10 @@ public class RecentPanelView implements NextAlarmChangeCallback {
             @Override
             public void run() {
                 if (!recyclerView.isComputingLayout()) {
-                    mCardAdapter.notifyItemChanged(card.index);
+                    final int position = mCardAdapter.getCardPosition(card);
+                    if (position >= 0) {
+                        mCardAdapter.notifyItemChanged(position);
+                    }
                 } else {
                     postnotifyItemChanged(recyclerView, card);
                 }
@@ -1475,28 +1952,14 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         }
     }
 
-    private static ActivityManager.RunningTaskInfo
-            getRunningTask(ActivityManager am) {
-        // Note: The set of running tasks from the system is ordered by recency
-        List<ActivityManager.RunningTaskInfo> tasks = am.getRunningTasks(10);
-        if (tasks != null && !tasks.isEmpty()) {
-            // Find the first task in a valid stack, we ignore everything
-            // from the Recents and PiP stacks
-            for (int i = 0; i < tasks.size(); i++) {
-                ActivityManager.RunningTaskInfo task = tasks.get(i);
-                int stackId = task.stackId;
-                return task;
-            }
-        }
-        return null;
-    }
-
     protected void isScreenPinningEnabled(boolean enabled) {
         mIsScreenPinningEnabled = enabled;
     }
 
     protected void setMaxAppsToLoad(int max) {
         mMaxAppsToLoad = max;
+        InfosCacheController.getInstance(mContext).setMaxApps(max,
+                ActivityManager.getMaxRecentTasksStatic());
     }
 
     /**
@@ -1545,56 +2008,4 @@ public class RecentPanelView implements NextAlarmChangeCallback {
         }
         return null;
     }
-
-    interface DownloaderCallback {
-        void onBitmapLoaded(Bitmap bitmap);
-    }
-
-    // AsyncTask loader for the task bitmap.
-    public static class BitmapDownloaderTask
-            extends AsyncTask<Integer, Void, Bitmap> {
-
-        private boolean mLoaded;
-        private final WeakReference<Context> rContext;
-
-        private DownloaderCallback mCallback;
-
-        public BitmapDownloaderTask(Context context, DownloaderCallback callback) {
-            rContext = new WeakReference<Context>(context);
-            mCallback = callback;
-        }
-
-        @Override
-        protected Bitmap doInBackground(Integer... params) {
-            mLoaded = false;
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + 1);
-            if (isCancelled() || rContext == null) {
-                return null;
-            }
-            // Load and return bitmap
-            return loadThumbnail(params[0], rContext.get());
-        }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            if (isCancelled()) {
-                bitmap = null;
-            }
-            final Context context;
-            if (rContext != null) {
-                context = rContext.get();
-            } else {
-                context = null;
-            }
-            // Assign image to the view.
-            mLoaded = true;
-            if (mCallback != null) {
-                mCallback.onBitmapLoaded(bitmap);
-            }
-        }
-
-        public boolean isLoaded() {
-            return mLoaded;
-        }
-    }
 }
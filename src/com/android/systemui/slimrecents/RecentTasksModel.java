@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+
+import com.android.systemui.shared.recents.model.ThumbnailData;
+import com.android.systemui.shared.system.ActivityManagerWrapper;
+import com.android.systemui.shared.system.TaskStackChangeListener;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the recent task list warm.
+ *
+ * We listen to task stack changes and reload the list on our tasks lane
+ * in background right after a change, so #link:RecentPanelView CardLoader
+ * finds a current list when the user opens recents and doesn't need to ask
+ * ActivityManager on the open path. Bursts of changes are coalesced into
+ * one reload. If the list is outdated anyway it is loaded on the caller
+ * thread as before.
+ *
+ * Changed task snapshots mark our cached screenshot as stale, so it gets
+ * refreshed on the next load while the old one is still shown.
+ */
+public class RecentTasksModel {
+
+    private final static String TAG = "RecentTasksModel";
+
+    private static final String RELOAD_JOB_KEY = "reload_recent_tasks";
+
+    /**
+     * Singleton.
+     */
+    private static volatile RecentTasksModel sInstance;
+
+    private final Context mContext;
+    private final ActivityManager mAm;
+
+    // Bumped on every change we get notified about.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * The task list as loaded for one generation.
+     */
+    private static final class Snapshot {
+        final int generation;
+        final List<ActivityManager.RecentTaskInfo> tasks;
+
+        Snapshot(int generation, List<ActivityManager.RecentTaskInfo> tasks) {
+            this.generation = generation;
+            this.tasks = tasks;
+        }
+    }
+
+    private final TaskStackChangeListener mTaskStackListener = new TaskStackChangeListener() {
+        @Override
+        public void onTaskStackChangedBackground() {
+            invalidate();
+        }
+
+        @Override
+        public void onTaskCreated(int taskId, ComponentName componentName) {
+            invalidate();
+        }
+
+        @Override
+        public void onTaskRemoved(int taskId) {
+            invalidate();
+        }
+
+        @Override
+        public void onTaskMovedToFront(int taskId) {
+            invalidate();
+        }
+
+        @Override
+        public void onTaskSnapshotChanged(int taskId, ThumbnailData snapshot) {
+            ThumbnailsCacheController.getInstance(mContext).markStale(String.valueOf(taskId));
+        }
+    };
+
+    /**
+     * Get the instance.
+     */
+    public static RecentTasksModel getInstance(Context context) {
+        RecentTasksModel instance = sInstance;
+        if (instance == null) {
+            synchronized (RecentTasksModel.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new RecentTasksModel(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor.
+     */
+    private RecentTasksModel(Context context) {
+        mContext = context;
+        mAm = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManagerWrapper.getInstance().registerTaskStackListener(mTaskStackListener);
+        scheduleReload();
+    }
+
+    /**
+     * Get the current recent tasks. Do not call this from the main thread,
+     * it loads the list if it is outdated.
+     */
+    public List<ActivityManager.RecentTaskInfo> getRecentTasks() {
+        final int generation = mGeneration.get();
+        final Snapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.generation == generation) {
+            return snapshot.tasks;
+        }
+        return load(generation);
+    }
+
+    /**
+     * Get the last loaded list without loading, even if it is outdated.
+     * Safe on the main thread. Null if we never loaded one.
+     */
+    public List<ActivityManager.RecentTaskInfo> peekRecentTasks() {
+        final Snapshot snapshot = mSnapshot;
+        return snapshot == null ? null : snapshot.tasks;
+    }
+
+    /**
+     * Forget the current list, eg on user switch, and reload it in background.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+        scheduleReload();
+    }
+
+    private void scheduleReload() {
+        // A reload which is still queued covers this change as well.
+        RecentsTaskScheduler.getInstance().submit(RecentsTaskScheduler.LANE_TASKS,
+                RecentsTaskScheduler.PRIORITY_LOW, RELOAD_JOB_KEY, () -> {
+            load(mGeneration.get());
+        });
+    }
+
+    private List<ActivityManager.RecentTaskInfo> load(int generation) {
+        List<ActivityManager.RecentTaskInfo> tasks = mAm.getRecentTasks(
+                ActivityManager.getMaxRecentTasksStatic(), ActivityManager.SLIM_RECENTS);
+        tasks = tasks == null ? Collections.emptyList() : Collections.unmodifiableList(tasks);
+        synchronized (this) {
+            // Don't replace a list which was loaded for a newer change.
+            final Snapshot current = mSnapshot;
+            if (current == null || current.generation <= generation) {
+                mSnapshot = new Snapshot(generation, tasks);
+            }
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+
+/**
+ * Owns the single memory budget shared by all our LRU cache controllers.
+ *
+ * The budget is split between app icons (#link:CacheController),
+ * task screenshots (#link:ThumbnailsCacheController) and activity infos
+ * (#link:InfosCacheController). Each cache gets a minimum share and the rest
+ * is handed out by the hits the caches served since the last rebalance.
+ * A rebalance is done on every #link:RecentController.trimCaches call.
+ *
+ * Memory pressure is graded: every trim level keeps another percentage
+ * of each share, see #link:getKeepPercent. Icons and infos trimmed away
+ * this way move to a soft referenced tier and can be revived later.
+ *
+ * Budget changes are rare, so a plain monitor is enough here.
+ */
+public class RecentsCacheManager {
+
+    private final static String TAG = "RecentsCacheManager";
+
+    public static final int CACHE_ICONS      = 0;
+    public static final int CACHE_THUMBNAILS = 1;
+    public static final int CACHE_INFOS      = 2;
+    private static final int CACHE_COUNT     = 3;
+
+    // Optional override of the whole budget in kilobytes.
+    private static final String PROP_BUDGET_KB = "persist.sys.slimrecents.cache_kb";
+
+    // By default all recents caches together may use 1/4 of the VM heap.
+    private static final int DEFAULT_BUDGET_DIVIDER = 4;
+
+    // Shares in percent used until we observed some hits.
+    private static final int[] DEFAULT_SHARES = { 60, 35, 5 };
+    // Every cache keeps at least this share in percent.
+    private static final int MIN_SHARE = 5;
+
+    // Estimated footprint of one cached activity info in kilobytes.
+    // InfosCacheController counts entries, so we convert its share with it.
+    static final int INFO_ENTRY_SIZE_KB = 2;
+
+    /**
+     * Percent of its share every cache keeps for the trim level.
+     */
+    public static int getKeepPercent(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 50;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 75;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Only the panel went away, nothing to give back.
+            return 100;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 50;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 80;
+        }
+        return 100;
+    }
+
+    /**
+     * A cache controller which is sized by this manager.
+     */
+    public interface BudgetedCache {
+        /** Hits served since the last call. */
+        int takeHitCount();
+        /** Set the new maximum size of the cache in kilobytes. */
+        void setMaxSizeKb(int sizeKb);
+        /**
+         * Trim the cache down to the given size in kilobytes because of
+         * memory pressure. Trimmed entries may be kept softly referenced.
+         */
+        void trimToSizeKb(int sizeKb);
+    }
+
+    /**
+     * Singleton.
+     */
+    private static volatile RecentsCacheManager sInstance;
+
+    private final BudgetedCache[] mCaches = new BudgetedCache[CACHE_COUNT];
+    private final int[] mShares = new int[CACHE_COUNT];
+    private int mBudgetKb;
+
+    /**
+     * Get the instance.
+     */
+    public static RecentsCacheManager getInstance(Context context) {
+        RecentsCacheManager instance = sInstance;
+        if (instance == null) {
+            synchronized (RecentsCacheManager.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new RecentsCacheManager(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor.
+     * Defines the budget from the VM heap or the configured override.
+     */
+    private RecentsCacheManager(Context context) {
+        // Get max available VM memory, exceeding this amount will throw an
+        // OutOfMemory exception. Stored in kilobytes as LruCache takes an
+        // int in its constructor.
+        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
+        final int budget = SystemProperties.getInt(PROP_BUDGET_KB, 0);
+        mBudgetKb = budget > 0 ? Math.min(budget, maxMemory / 2)
+                : maxMemory / DEFAULT_BUDGET_DIVIDER;
+        System.arraycopy(DEFAULT_SHARES, 0, mShares, 0, CACHE_COUNT);
+    }
+
+    /**
+     * Called by the cache controllers from their constructors.
+     */
+    protected synchronized void register(int type, BudgetedCache cache) {
+        mCaches[type] = cache;
+    }
+
+    /**
+     * Current size in kilobytes the requested cache may use.
+     */
+    public synchronized int getSizeKb(int type) {
+        return (int) ((long) mBudgetKb * mShares[type] / 100);
+    }
+
+    /**
+     * Split the budget by the hits every cache served since the last
+     * rebalance and resize the caches accordingly.
+     */
+    public synchronized void rebalance() {
+        final int[] hits = new int[CACHE_COUNT];
+        long totalHits = 0;
+        for (int i = 0; i < CACHE_COUNT; i++) {
+            if (mCaches[i] != null) {
+                hits[i] = mCaches[i].takeHitCount();
+                totalHits += hits[i];
+            }
+        }
+        if (totalHits > 0) {
+            final int freeShare = 100 - MIN_SHARE * CACHE_COUNT;
+            int assigned = 0;
+            for (int i = 0; i < CACHE_COUNT; i++) {
+                mShares[i] = MIN_SHARE + (int) (freeShare * hits[i] / totalHits);
+                assigned += mShares[i];
+            }
+            // Hand out rounding leftovers to the icons, they are our hottest cache.
+            mShares[CACHE_ICONS] += 100 - assigned;
+        }
+        applyShares();
+    }
+
+    /**
+     * Rebalance and trim all caches to the given percent of their share.
+     * Trimmed caches can grow again up to their share later.
+     */
+    public synchronized void trim(int keepPercent) {
+        rebalance();
+        for (int i = 0; i < CACHE_COUNT; i++) {
+            if (mCaches[i] != null) {
+                mCaches[i].trimToSizeKb((int) ((long) getSizeKb(i) * keepPercent / 100));
+            }
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("budget="); pw.print(mBudgetKb);
+        pw.print("kb shares: icons="); pw.print(mShares[CACHE_ICONS]);
+        pw.print("% thumbnails="); pw.print(mShares[CACHE_THUMBNAILS]);
+        pw.print("% infos="); pw.print(mShares[CACHE_INFOS]); pw.println("%");
+    }
+
+    private void applyShares() {
+        for (int i = 0; i < CACHE_COUNT; i++) {
+            if (mCaches[i] != null) {
+                mCaches[i].setMaxSizeKb(getSizeKb(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import static android.app.WindowConfiguration.ACTIVITY_TYPE_RECENTS;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
+import android.graphics.Point;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.Log;
+import android.view.Display;
+import android.view.IDockedStackListener;
+import android.view.WindowManager;
+import android.view.WindowManagerGlobal;
+
+import com.android.systemui.shared.system.ActivityManagerWrapper;
+import com.android.systemui.shared.system.TaskStackChangeListener;
+import com.android.systemui.stackdivider.WindowManagerProxy;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the system state our open and launch paths need.
+ *
+ * Running tasks and lock task mode are reloaded in background after task
+ * stack changes, a burst of changes is coalesced into one reload. The
+ * launcher package is refreshed on package and preferred activity changes,
+ * the dock side by a docked stack listener and the display size by a
+ * display listener. So opening recents or starting a task reads memory
+ * instead of asking ActivityManager, PackageManager and WindowManager
+ * every time. Only if the running tasks are asked for before the reload
+ * ran, they are loaded on the caller thread.
+ *
+ * Getters are safe to call from any thread.
+ */
+public class RecentsSystemState {
+
+    private final static String TAG = "RecentsSystemState";
+
+    private static final int MAX_RUNNING_TASKS = 10;
+
+    private static final String RELOAD_JOB_KEY = "reload_system_state";
+
+    /**
+     * Singleton.
+     */
+    private static volatile RecentsSystemState sInstance;
+
+    private final Context mContext;
+    private final ActivityManager mAm;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile List<ActivityManager.RunningTaskInfo> mRunningTasks;
+    private volatile boolean mRunningTasksDirty = true;
+    private volatile int mLockTaskMode = ActivityManager.LOCK_TASK_MODE_NONE;
+    private volatile String mLauncherPackage;
+    private volatile int mDockSide = WindowManager.DOCKED_INVALID;
+    private final Point mDisplaySize = new Point();
+
+    private final TaskStackChangeListener mTaskStackListener = new TaskStackChangeListener() {
+        @Override
+        public void onTaskStackChangedBackground() {
+            mRunningTasksDirty = true;
+            scheduleReload();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The default launcher may have changed.
+            mLauncherPackage = null;
+        }
+    };
+
+    private final DisplayManager.DisplayListener mDisplayListener =
+            new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                updateDisplaySize();
+            }
+        }
+    };
+
+    private final IDockedStackListener mDockedStackListener = new IDockedStackListener.Stub() {
+        @Override
+        public void onDividerVisibilityChanged(boolean visible) {
+        }
+
+        @Override
+        public void onDockedStackExistsChanged(boolean exists) {
+            mDockSide = exists ? WindowManagerProxy.getInstance().getDockSide()
+                    : WindowManager.DOCKED_INVALID;
+        }
+
+        @Override
+        public void onDockedStackMinimizedChanged(boolean minimized, long animDuration,
+                boolean isHomeStackResizable) {
+        }
+
+        @Override
+        public void onAdjustedForImeChanged(boolean adjustedForIme, long animDuration) {
+        }
+
+        @Override
+        public void onDockSideChanged(int newDockSide) {
+            mDockSide = newDockSide;
+        }
+    };
+
+    /**
+     * Get the instance.
+     */
+    public static RecentsSystemState getInstance(Context context) {
+        RecentsSystemState instance = sInstance;
+        if (instance == null) {
+            synchronized (RecentsSystemState.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new RecentsSystemState(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor.
+     * Must be called on the main thread, it registers our listeners.
+     */
+    private RecentsSystemState(Context context) {
+        mContext = context;
+        mAm = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        mLockTaskMode = mAm.getLockTaskModeState();
+        ActivityManagerWrapper.getInstance().registerTaskStackListener(mTaskStackListener);
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL,
+                packageFilter, null, mHandler);
+        final IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_PREFERRED_ACTIVITY_CHANGED);
+        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL,
+                userFilter, null, mHandler);
+
+        final DisplayManager dm = context.getSystemService(DisplayManager.class);
+        dm.registerDisplayListener(mDisplayListener, mHandler);
+        updateDisplaySize();
+
+        try {
+            WindowManagerGlobal.getWindowManagerService()
+                    .registerDockedStackListener(mDockedStackListener);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to register docked stack listener", e);
+        }
+        mDockSide = WindowManagerProxy.getInstance().getDockSide();
+    }
+
+    /**
+     * Running tasks ordered by recency, at most MAX_RUNNING_TASKS.
+     */
+    public List<ActivityManager.RunningTaskInfo> getRunningTasks() {
+        final List<ActivityManager.RunningTaskInfo> tasks = mRunningTasks;
+        if (tasks != null && !mRunningTasksDirty) {
+            return tasks;
+        }
+        return loadRunningTasks();
+    }
+
+    /**
+     * The running task on top, ignoring the recents activity.
+     */
+    public ActivityManager.RunningTaskInfo getRunningTask() {
+        return findRunningTask(getRunningTasks());
+    }
+
+    /**
+     * Like #link:getRunningTask, but never asks ActivityManager, so it is
+     * safe on the main thread. The result may be outdated or null.
+     */
+    public ActivityManager.RunningTaskInfo peekRunningTask() {
+        final List<ActivityManager.RunningTaskInfo> tasks = mRunningTasks;
+        return tasks != null ? findRunningTask(tasks) : null;
+    }
+
+    private static ActivityManager.RunningTaskInfo findRunningTask(
+            List<ActivityManager.RunningTaskInfo> tasks) {
+        for (ActivityManager.RunningTaskInfo task : tasks) {
+            if (task.configuration.windowConfiguration.getActivityType()
+                    != ACTIVITY_TYPE_RECENTS) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    public boolean isInLockTaskMode() {
+        return mLockTaskMode != ActivityManager.LOCK_TASK_MODE_NONE;
+    }
+
+    public boolean isScreenPinningActive() {
+        return mLockTaskMode == ActivityManager.LOCK_TASK_MODE_PINNED;
+    }
+
+    /**
+     * Package of the current default launcher.
+     */
+    public String getLauncherPackage() {
+        String launcherPackage = mLauncherPackage;
+        if (launcherPackage == null) {
+            final Intent launcherIntent = new Intent(Intent.ACTION_MAIN)
+                    .addCategory(Intent.CATEGORY_HOME);
+            final ResolveInfo launcherInfo =
+                    mContext.getPackageManager().resolveActivity(launcherIntent, 0);
+            launcherPackage = launcherInfo != null
+                    ? launcherInfo.activityInfo.packageName : "";
+            mLauncherPackage = launcherPackage;
+        }
+        return launcherPackage;
+    }
+
+    public int getDockSide() {
+        return mDockSide;
+    }
+
+    /**
+     * Real size of the default display.
+     */
+    public Point getDisplayRealSize() {
+        synchronized (mDisplaySize) {
+            return new Point(mDisplaySize);
+        }
+    }
+
+    private void scheduleReload() {
+        // A reload which is still queued covers this change as well.
+        RecentsTaskScheduler.getInstance().submit(RecentsTaskScheduler.LANE_TASKS,
+                RecentsTaskScheduler.PRIORITY_LOW, RELOAD_JOB_KEY, () -> {
+            if (mRunningTasksDirty) {
+                loadRunningTasks();
+            }
+            mLockTaskMode = mAm.getLockTaskModeState();
+        });
+    }
+
+    private List<ActivityManager.RunningTaskInfo> loadRunningTasks() {
+        // Clear the flag first, a change while we load marks us dirty again.
+        mRunningTasksDirty = false;
+        List<ActivityManager.RunningTaskInfo> tasks = mAm.getRunningTasks(MAX_RUNNING_TASKS);
+        if (tasks == null) {
+            tasks = Collections.emptyList();
+        }
+        mRunningTasks = tasks;
+        return tasks;
+    }
+
+    private void updateDisplaySize() {
+        final Display display = mContext.getSystemService(DisplayManager.class)
+                .getDisplay(Display.DEFAULT_DISPLAY);
+        synchronized (mDisplaySize) {
+            display.getRealSize(mDisplaySize);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Our own background work scheduler, so recents work never waits behind
+ * other SystemUI AsyncTasks and vice versa.
+ *
+ * Work is split into bounded lanes: task metadata (#link:RecentPanelView
+ * CardLoader), app icons and task screenshots. Every lane runs its queued
+ * jobs by priority, then in submit order. Keyed jobs replace a queued job
+ * with the same key, so superseded work never runs. Queued jobs can be
+ * cancelled or reprioritized as long as they did not start yet.
+ *
+ * All workers of a lane take their jobs from the same queue, so an idle
+ * worker always picks the next job and a batch spreads over all workers.
+ *
+ * The lanes can as well be used as plain Executor, eg for AsyncTasks.
+ */
+public class RecentsTaskScheduler {
+
+    private final static String TAG = "RecentsTaskScheduler";
+
+    public static final int LANE_TASKS      = 0;
+    public static final int LANE_ICONS      = 1;
+    public static final int LANE_THUMBNAILS = 2;
+    private static final int LANE_COUNT     = 3;
+
+    // Lower values run first.
+    public static final int PRIORITY_HIGH   = 0;
+    public static final int PRIORITY_NORMAL = 10;
+    public static final int PRIORITY_LOW    = 20;
+
+    private static final String[] LANE_NAMES = { "tasks", "icons", "thumbnails" };
+    // The task loader is serial by design. Icon rendering is CPU bound, so the
+    // icons lane gets a thread per core but leaves one core for the UI.
+    // Screenshots are mostly binder bound.
+    private static final int MAX_ICON_THREADS = 4;
+    private static final int[] LANE_THREADS = { 1,
+            Math.max(2, Math.min(MAX_ICON_THREADS,
+                    Runtime.getRuntime().availableProcessors() - 1)),
+            2 };
+    private static final long KEEP_ALIVE_SECONDS = 2;
+
+    /**
+     * Singleton.
+     */
+    private static volatile RecentsTaskScheduler sInstance;
+
+    private final Lane[] mLanes = new Lane[LANE_COUNT];
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Get the instance.
+     */
+    public static RecentsTaskScheduler getInstance() {
+        RecentsTaskScheduler instance = sInstance;
+        if (instance == null) {
+            synchronized (RecentsTaskScheduler.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new RecentsTaskScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor.
+     */
+    private RecentsTaskScheduler() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new Lane(LANE_NAMES[i], LANE_THREADS[i]);
+        }
+    }
+
+    /**
+     * Get an executor which queues its work into the lane with normal priority.
+     */
+    public Executor getExecutor(int lane) {
+        return getExecutor(lane, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Get an executor which queues its work into the lane with the given priority.
+     */
+    public Executor getExecutor(final int lane, final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                submit(lane, priority, null, runnable);
+            }
+        };
+    }
+
+    /**
+     * Queue the runnable into the lane.
+     *
+     * @param key if not null, a job with the same key which is still queued
+     *            in this lane is superseded and cancelled.
+     * @return the job to cancel or reprioritize it later.
+     */
+    public Job submit(int lane, int priority, String key, Runnable runnable) {
+        final Job job = new Job(mLanes[lane], key, runnable, priority,
+                mSequence.incrementAndGet());
+        mLanes[lane].enqueue(job);
+        return job;
+    }
+
+    /**
+     * A queued piece of work.
+     */
+    public static final class Job implements Runnable, Comparable<Job>,
+            LoadScope.Cancellable {
+        private final Lane mLane;
+        private final String mKey;
+        private final Runnable mRunnable;
+        private final long mSequence;
+        private volatile int mPriority;
+        private volatile boolean mCancelled;
+
+        private Job(Lane lane, String key, Runnable runnable, int priority, long sequence) {
+            mLane = lane;
+            mKey = key;
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Cancel the job. Does nothing if it already started.
+         */
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mLane.remove(this);
+        }
+
+        /**
+         * Change the priority of the job if it is still queued.
+         */
+        public void setPriority(int priority) {
+            mLane.reprioritize(this, priority);
+        }
+
+        @Override
+        public void run() {
+            if (!mLane.onStart(this) || mCancelled) {
+                return;
+            }
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * A bounded pool with its own priority queue.
+     */
+    private static final class Lane {
+        private final PriorityBlockingQueue<Runnable> mQueue =
+                new PriorityBlockingQueue<Runnable>();
+        private final ThreadPoolExecutor mExecutor;
+        // Queued jobs by key.
+        private final HashMap<String, Job> mKeyedJobs = new HashMap<String, Job>();
+
+        Lane(final String name, int threads) {
+            mExecutor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, mQueue, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SlimRecents-" + name + "-" + mCount.incrementAndGet());
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        // Queue changes happen under the lane lock only, so a job is either
+        // queued or not while we remove or reprioritize it.
+        synchronized void enqueue(Job job) {
+            if (job.mKey != null) {
+                final Job superseded = mKeyedJobs.put(job.mKey, job);
+                if (superseded != null) {
+                    superseded.mCancelled = true;
+                    mQueue.remove(superseded);
+                }
+            }
+            mExecutor.execute(job);
+        }
+
+        /**
+         * Called by the worker before the job runs.
+         * Returns false if the job was superseded meanwhile.
+         */
+        synchronized boolean onStart(Job job) {
+            if (job.mKey != null && mKeyedJobs.get(job.mKey) == job) {
+                mKeyedJobs.remove(job.mKey);
+            }
+            return !job.mCancelled;
+        }
+
+        synchronized void remove(Job job) {
+            if (job.mKey != null && mKeyedJobs.get(job.mKey) == job) {
+                mKeyedJobs.remove(job.mKey);
+            }
+            mQueue.remove(job);
+        }
+
+        synchronized void reprioritize(Job job, int priority) {
+            if (job.mPriority == priority) {
+                return;
+            }
+            // The queue only orders on insert, so take the job out and back in.
+            // Never change the priority of a queued job, the heap would break.
+            // Go through the executor, idle workers may have timed out meanwhile.
+            if (mQueue.remove(job)) {
+                job.mPriority = priority;
+                mExecutor.execute(job);
+            }
+            // Otherwise it is running or done, its priority doesn't matter anymore.
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Soft referenced second tier of our LRU cache controllers.
+ *
+ * Entries the controllers trim away because of memory pressure are kept
+ * here, so the next open of the recents panel can revive them without
+ * loading them again as long as the GC did not need the memory.
+ * Entries are removed when they are revived or cleared by the GC.
+ *
+ * Safe to use from any thread.
+ */
+public class SoftCacheTier<V> {
+
+    private final ConcurrentHashMap<String, KeyedReference<V>> mEntries =
+            new ConcurrentHashMap<String, KeyedReference<V>>();
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+
+    private static class KeyedReference<V> extends SoftReference<V> {
+        final String key;
+
+        KeyedReference(String key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    public void put(String key, V value) {
+        if (key == null || value == null) {
+            return;
+        }
+        purgeCleared();
+        mEntries.put(key, new KeyedReference<V>(key, value, mQueue));
+    }
+
+    /**
+     * Remove the entry and return its value, null if it is not
+     * present anymore.
+     */
+    public V take(String key) {
+        if (key == null) {
+            return null;
+        }
+        final KeyedReference<V> ref = mEntries.remove(key);
+        return ref == null ? null : ref.get();
+    }
+
+    public void remove(String key) {
+        if (key != null) {
+            mEntries.remove(key);
+        }
+    }
+
+    /**
+     * Remove all entries of the package.
+     */
+    public void removePackage(String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        final Iterator<String> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (packageName.equals(PackageKeyIndex.getPackageName(it.next()))) {
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        purgeCleared();
+    }
+
+    public int size() {
+        purgeCleared();
+        return mEntries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void purgeCleared() {
+        KeyedReference<V> ref;
+        while ((ref = (KeyedReference<V>) mQueue.poll()) != null) {
+            // Don't drop a newer entry stored with the same key.
+            mEntries.remove(ref.key, ref);
+        }
+    }
+}
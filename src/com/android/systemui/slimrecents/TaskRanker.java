@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Orders the tasks of one #link:RecentPanelView CardLoader pass.
+ *
+ * Tasks are offered once each in recency order. Filters drop tasks, eg the
+ * blacklisted ones. Rules rank the others: a task gets the rank of the first
+ * rule it matches, tasks matching no rule come last, and tasks of the same
+ * rank keep their recency order. New ranking rules are just another rule.
+ *
+ * A task is handed to the sink as soon as no later task can rank before it,
+ * that is once all rules before its rank are exhausted. So eg the top task
+ * and the first tasks are shown while the rest is still being resolved.
+ * Everything else is held back and handed over by #link:finish.
+ *
+ * Rules see the tasks in recency order, and only those no earlier rule
+ * took, so they may count. Use a new ranker for every pass.
+ */
+public class TaskRanker {
+
+    public interface Filter {
+        boolean accept(TaskDescription task);
+    }
+
+    public interface Rule {
+        boolean matches(TaskDescription task);
+
+        /**
+         * True if no task offered from now on can match anymore.
+         */
+        boolean isExhausted();
+    }
+
+    public interface Sink {
+        void onRanked(TaskDescription task, int rank);
+    }
+
+    private final int mLimit;
+    private final Sink mSink;
+    private final ArrayList<Filter> mFilters = new ArrayList<Filter>();
+    private final ArrayList<Rule> mRules = new ArrayList<Rule>();
+    // Held back tasks by rank, created on first use.
+    private ArrayList<ArrayList<TaskDescription>> mDeferred;
+    private int mCount;
+
+    /**
+     * @param limit max tasks handed to the sink
+     */
+    public TaskRanker(int limit, Sink sink) {
+        mLimit = limit;
+        mSink = sink;
+    }
+
+    public TaskRanker addFilter(Filter filter) {
+        mFilters.add(filter);
+        return this;
+    }
+
+    /**
+     * Add a rule. It ranks after all rules added before.
+     */
+    public TaskRanker addRule(Rule rule) {
+        mRules.add(rule);
+        return this;
+    }
+
+    /**
+     * True once the sink got as many tasks as we want. Later offers
+     * can't change the result anymore then.
+     */
+    public boolean isFull() {
+        return mCount >= mLimit;
+    }
+
+    /**
+     * Offer the next task in recency order.
+     *
+     * @return false if the task was filtered.
+     */
+    public boolean offer(TaskDescription task) {
+        for (int i = 0; i < mFilters.size(); i++) {
+            if (!mFilters.get(i).accept(task)) {
+                return false;
+            }
+        }
+        if (isFull()) {
+            return true;
+        }
+        final int ruleCount = mRules.size();
+        int rank = ruleCount;
+        for (int i = 0; i < ruleCount; i++) {
+            if (mRules.get(i).matches(task)) {
+                rank = i;
+                break;
+            }
+        }
+        if (isSettled(rank)) {
+            // Held back tasks of this rank or before come first.
+            flush(rank);
+            emit(task, rank);
+        } else {
+            defer(task, rank);
+        }
+        return true;
+    }
+
+    /**
+     * Hand over all held back tasks, by rank.
+     */
+    public void finish() {
+        flush(mRules.size());
+    }
+
+    private boolean isSettled(int rank) {
+        for (int i = 0; i < rank; i++) {
+            if (!mRules.get(i).isExhausted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void defer(TaskDescription task, int rank) {
+        if (mDeferred == null) {
+            mDeferred = new ArrayList<ArrayList<TaskDescription>>(mRules.size() + 1);
+            for (int i = 0; i <= mRules.size(); i++) {
+                mDeferred.add(null);
+            }
+        }
+        ArrayList<TaskDescription> bucket = mDeferred.get(rank);
+        if (bucket == null) {
+            bucket = new ArrayList<TaskDescription>();
+            mDeferred.set(rank, bucket);
+        }
+        bucket.add(task);
+    }
+
+    private void flush(int maxRank) {
+        if (mDeferred == null) {
+            return;
+        }
+        for (int rank = 0; rank <= maxRank; rank++) {
+            final ArrayList<TaskDescription> bucket = mDeferred.get(rank);
+            if (bucket == null) {
+                continue;
+            }
+            for (int i = 0; i < bucket.size(); i++) {
+                emit(bucket.get(i), rank);
+            }
+            bucket.clear();
+        }
+    }
+
+    private void emit(TaskDescription task, int rank) {
+        if (isFull()) {
+            return;
+        }
+        mCount++;
+        mSink.onRanked(task, rank);
+    }
+
+    /**
+     * Drop the tasks of blacklisted packages.
+     */
+    public static Filter blacklist(final Set<String> packageNames) {
+        return new Filter() {
+            @Override
+            public boolean accept(TaskDescription task) {
+                return packageNames.isEmpty() || !packageNames.contains(task.packageName);
+            }
+        };
+    }
+
+    /**
+     * Match the first tasks which reach this rule.
+     */
+    public static Rule firstTasks(final int count) {
+        return new Rule() {
+            private int mMatched;
+
+            @Override
+            public boolean matches(TaskDescription task) {
+                if (mMatched < count) {
+                    mMatched++;
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return mMatched >= count;
+            }
+        };
+    }
+
+    public static Rule favorites() {
+        return new Rule() {
+            @Override
+            public boolean matches(TaskDescription task) {
+                return task.getIsFavorite();
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return false;
+            }
+        };
+    }
+
+    public static Rule mediaPlaying() {
+        return new Rule() {
+            @Override
+            public boolean matches(TaskDescription task) {
+                return task.isMediaPlayingTask();
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return false;
+            }
+        };
+    }
+}
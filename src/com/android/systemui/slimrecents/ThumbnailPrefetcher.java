@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 ABC rom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.systemui.slimrecents;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+
+import com.android.systemui.slimrecents.ExpandableCardAdapter.ExpandableCard;
+
+/**
+ * Loads the task screenshots of expanded cards while the user scrolls.
+ *
+ * The #link:RecentPanelView CardLoader only loads the screenshots of the
+ * first cards. This prefetcher follows the scroll position and speed and
+ * requests the screenshots of the visible cards and of a few cards ahead
+ * in scroll direction, the faster the scroll the more. Only a few requests
+ * run at once. Cards which scrolled far away drop their screenshot, it is
+ * still in the #link:ThumbnailsCacheController as long as it fits.
+ *
+ * Requests belong to the #link:LoadScope of the current pass, so they are
+ * dropped with it if the panel hides.
+ *
+ * Must be used from the main thread.
+ */
+public class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+
+    private final static String TAG = "RecentThumbnailPrefetcher";
+
+    // Max screenshot requests at once.
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    // Cards ahead of the visible ones we load, more while scrolling fast.
+    private static final int MIN_LOOKAHEAD = 2;
+    private static final int MAX_LOOKAHEAD = 6;
+    // Scrolled pixels per event which add one card to the lookahead.
+    private static final int LOOKAHEAD_STEP_PX = 40;
+    // Cards further away from the visible ones drop their screenshot.
+    private static final int RELEASE_DISTANCE = 10;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Running requests by persistent task id.
+    private final SparseArray<RecentsTaskScheduler.Job> mRequests = new SparseArray<>();
+
+    private RecyclerView mRecyclerView;
+    private LoadScope mScope;
+    private boolean mEnabled = true;
+    private int mLastFirstVisible = RecyclerView.NO_POSITION;
+    private boolean mTowardsEnd = true;
+    private int mLookahead = MIN_LOOKAHEAD;
+    // Cards which may still hold a screenshot, see #link:releaseFarCards.
+    private int mKeepStart = RecyclerView.NO_POSITION;
+    private int mKeepEnd = RecyclerView.NO_POSITION;
+
+    public ThumbnailPrefetcher(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Disable in fast mode, we don't show any screenshots then.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            reset();
+        }
+    }
+
+    /**
+     * Scope of the current pass, new requests are added to it.
+     */
+    public void setScope(LoadScope scope) {
+        mScope = scope;
+    }
+
+    /**
+     * Forget the running requests, eg if the panel was hidden and the
+     * queued requests got cancelled.
+     */
+    public void reset() {
+        for (int i = 0; i < mRequests.size(); i++) {
+            mRequests.valueAt(i).cancel();
+        }
+        mRequests.clear();
+        mLastFirstVisible = RecyclerView.NO_POSITION;
+        mLookahead = MIN_LOOKAHEAD;
+        mKeepStart = RecyclerView.NO_POSITION;
+        mKeepEnd = RecyclerView.NO_POSITION;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        mRecyclerView = recyclerView;
+        mLookahead = Math.min(MAX_LOOKAHEAD, MIN_LOOKAHEAD + Math.abs(dy) / LOOKAHEAD_STEP_PX);
+        prefetch();
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            mRecyclerView = recyclerView;
+            mLookahead = MIN_LOOKAHEAD;
+            prefetch();
+        }
+    }
+
+    private void prefetch() {
+        if (!mEnabled || mRecyclerView == null || mScope == null || mScope.isCancelled()) {
+            return;
+        }
+        final ExpandableCardAdapter adapter = (ExpandableCardAdapter) mRecyclerView.getAdapter();
+        final LinearLayoutManager lm = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        if (adapter == null || lm == null) {
+            return;
+        }
+        final int first = lm.findFirstVisibleItemPosition();
+        final int last = lm.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        // A newer request for the same task superseded ours, free the slot.
+        for (int i = mRequests.size() - 1; i >= 0; i--) {
+            if (mRequests.valueAt(i).isCancelled()) {
+                mRequests.removeAt(i);
+            }
+        }
+        if (mLastFirstVisible != RecyclerView.NO_POSITION && first != mLastFirstVisible) {
+            mTowardsEnd = first > mLastFirstVisible;
+        }
+        mLastFirstVisible = first;
+
+        final int count = adapter.getItemCount();
+        final int start = Math.max(0, mTowardsEnd ? first : first - mLookahead);
+        final int end = Math.min(count - 1, mTowardsEnd ? last + mLookahead : last);
+
+        // Visible cards first, then the ones ahead in scroll direction.
+        for (int i = first; i <= Math.min(last, count - 1); i++) {
+            request(adapter, adapter.getCard(i));
+        }
+        if (mTowardsEnd) {
+            for (int i = last + 1; i <= end; i++) {
+                request(adapter, adapter.getCard(i));
+            }
+        } else {
+            for (int i = first - 1; i >= start; i--) {
+                request(adapter, adapter.getCard(i));
+            }
+        }
+
+        releaseFarCards(adapter, Math.max(0, first - RELEASE_DISTANCE),
+                Math.min(count - 1, last + RELEASE_DISTANCE));
+    }
+
+    /**
+     * Release the cards which left the range we keep since the last call.
+     * Cards further away were released already.
+     */
+    private void releaseFarCards(ExpandableCardAdapter adapter, int keepStart, int keepEnd) {
+        if (mKeepStart != RecyclerView.NO_POSITION) {
+            final int end = Math.min(mKeepEnd, adapter.getItemCount() - 1);
+            for (int i = mKeepStart; i <= Math.min(end, keepStart - 1); i++) {
+                release(adapter.getCard(i));
+            }
+            for (int i = Math.max(mKeepStart, keepEnd + 1); i <= end; i++) {
+                release(adapter.getCard(i));
+            }
+        }
+        mKeepStart = keepStart;
+        mKeepEnd = keepEnd;
+    }
+
+    private void release(ExpandableCard card) {
+        card.screenshot = null;
+        final RecentsTaskScheduler.Job job = mRequests.get(card.persistentTaskId);
+        if (job != null) {
+            job.cancel();
+            mRequests.remove(card.persistentTaskId);
+        }
+    }
+
+    private void request(final ExpandableCardAdapter adapter, final ExpandableCard card) {
+        if (!card.expanded || card.screenshot != null || card.persistentTaskId < 0
+                || mRequests.get(card.persistentTaskId) != null) {
+            return;
+        }
+        final ThumbnailsCacheController thumbsCache =
+                ThumbnailsCacheController.getInstance(mContext);
+        final int persistentTaskId = card.persistentTaskId;
+        final String key = String.valueOf(persistentTaskId);
+        // Cache hits are served right away, however many requests run.
+        final Bitmap cached = thumbsCache.getBitmapFromMemCache(key);
+        if (cached != null) {
+            setScreenshot(adapter, card, cached);
+            if (!thumbsCache.isStale(key)) {
+                return;
+            }
+        }
+        // Only fetches from the system count against the limit.
+        if (mRequests.size() >= MAX_CONCURRENT_REQUESTS) {
+            return;
+        }
+        // Same key as the loader uses, so we never fetch a screenshot twice.
+        final LoadScope scope = mScope;
+        final RecentsTaskScheduler.Job job = RecentsTaskScheduler.getInstance().submit(
+                RecentsTaskScheduler.LANE_THUMBNAILS, RecentsTaskScheduler.PRIORITY_HIGH,
+                key, () -> {
+            // A cancelled scope reset our requests already, nothing to free.
+            if (scope.isCancelled()) {
+                return;
+            }
+            final Bitmap bitmap = RecentPanelView.loadThumbnail(persistentTaskId, mContext);
+            if (bitmap != null && !scope.isCancelled()) {
+                thumbsCache.addBitmapToMemoryCache(key, bitmap);
+            }
+            mMainHandler.post(scope.guard(() -> {
+                mRequests.remove(persistentTaskId);
+                // keep the old screenshot if we had one
+                if (bitmap != null) {
+                    setScreenshot(adapter, card, bitmap);
+                }
+                // A slot is free again.
+                prefetch();
+            }));
+        });
+        scope.add(job);
+        mRequests.put(persistentTaskId, job);
+    }
+
+    private void setScreenshot(final ExpandableCardAdapter adapter,
+            final ExpandableCard card, Bitmap bitmap) {
+        card.screenshot = bitmap;
+        if (mRecyclerView != null && mRecyclerView.isComputingLayout()) {
+            // onScrolled is called from layout passes as well.
+            mMainHandler.post(() -> notifyCardChanged(adapter, card));
+        } else {
+            notifyCardChanged(adapter, card);
+        }
+    }
+
+    private void notifyCardChanged(ExpandableCardAdapter adapter, ExpandableCard card) {
+        final int position = adapter.getCardPosition(card);
+        if (position >= 0) {
+            adapter.notifyItemChanged(position);
+        }
+    }
+}
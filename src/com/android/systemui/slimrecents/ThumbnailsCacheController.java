@@ -17,62 +17,91 @@
 
 package com.android.systemui.slimrecents;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.LruCache;
 
-import java.util.ArrayList;
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is our LRU cache controller. It holds
- * the task screenshots.
+ * the task screenshots keyed by persistent task id.
  *
+ * Every screenshot carries the time it was loaded so callers can
+ * show it immediately and refresh it in background if it is stale.
+ *
+ * Task snapshots are hardware bitmaps. They live in graphics memory and
+ * not on the Java heap, so they are held in an own LRU cache with a limit
+ * derived from the device RAM instead of our share of the heap budget.
+ * Software bitmaps still use the heap budget.
  */
-public class ThumbnailsCacheController {
+public class ThumbnailsCacheController implements RecentsCacheManager.BudgetedCache {
 
     private final static String TAG = "RecentCacheController";
 
+    // Screenshots older than this are refreshed on the next load.
+    private static final long THUMB_MAX_AGE = 30 * 1000;
+
+    // Graphics memory limit for hardware screenshots: 1/128 of the device RAM,
+    // bounded to a sane range. Stored in kilobytes.
+    private static final int GRAPHICS_RAM_DIVIDER = 128;
+    private static final int MIN_GRAPHICS_SIZE = 8 * 1024;
+    private static final int MAX_GRAPHICS_SIZE = 32 * 1024;
+
     /**
      * Singleton.
      */
-    private static ThumbnailsCacheController sInstance;
+    private static volatile ThumbnailsCacheController sInstance;
 
     /**
      * Memory Cache.
      */
     protected LruCache<String, Bitmap> mMemoryCache;
 
+    /**
+     * Graphics memory cache for hardware bitmaps.
+     */
+    protected LruCache<String, Bitmap> mHardwareCache;
+    private int mGraphicsMaxSize;
+
     private Context mContext;
-    private int mMaxMemory;
+    private final CacheStats mStats = new CacheStats();
+    // Only heap hits count for our share of the heap budget.
+    private final AtomicInteger mTakenHeapHits = new AtomicInteger();
 
-    // Array list of all current keys.
-    private final ArrayList<String> mKeys = new ArrayList<String>();
+    // Load time of all current keys.
+    private final ConcurrentHashMap<String, Long> mLoadTimes =
+            new ConcurrentHashMap<String, Long>();
 
     /**
      * Get the instance.
      */
     public static ThumbnailsCacheController getInstance(Context context) {
-        if (sInstance != null) {
-            return sInstance;
-        } else {
-            return sInstance = new ThumbnailsCacheController(context);
+        ThumbnailsCacheController instance = sInstance;
+        if (instance == null) {
+            synchronized (ThumbnailsCacheController.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new ThumbnailsCacheController(context);
+                }
+            }
         }
+        return instance;
     }
 
     /**
      * Constructor.
-     * Defines the LRU cache size.
+     * Defines the LRU cache size from our share of the recents cache budget.
      */
     private ThumbnailsCacheController(Context context) {
         mContext = context;
 
-        // Get max available VM memory, exceeding this amount will throw an
-        // OutOfMemory exception. Stored in kilobytes as LruCache takes an
-        // int in its constructor.
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        mMaxMemory = maxMemory;
-
-        int cacheSize = maxMemory / 4;
+        final RecentsCacheManager cacheManager = RecentsCacheManager.getInstance(context);
+        int cacheSize = cacheManager.getSizeKb(RecentsCacheManager.CACHE_THUMBNAILS);
 
         if (mMemoryCache == null) {
             mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
@@ -84,21 +113,84 @@ public class ThumbnailsCacheController {
                 @Override
                 protected void entryRemoved(boolean evicted, String key,
                         Bitmap oldBitmap, Bitmap newBitmap) {
+                    onEntryRemoved(evicted, key, newBitmap);
+                }
+            };
+        }
+        if (mHardwareCache == null) {
+            mGraphicsMaxSize = getGraphicsMaxSize(context);
+            mHardwareCache = new LruCache<String, Bitmap>(mGraphicsMaxSize) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getAllocationByteCount() / 1024;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key,
+                        Bitmap oldBitmap, Bitmap newBitmap) {
+                    onEntryRemoved(evicted, key, newBitmap);
                 }
             };
         }
+        cacheManager.register(RecentsCacheManager.CACHE_THUMBNAILS, this);
+    }
+
+    private static int getGraphicsMaxSize(Context context) {
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(memInfo);
+        final int size = (int) (memInfo.totalMem / 1024 / GRAPHICS_RAM_DIVIDER);
+        return Math.max(MIN_GRAPHICS_SIZE, Math.min(size, MAX_GRAPHICS_SIZE));
+    }
+
+    private void onEntryRemoved(boolean evicted, String key, Bitmap newBitmap) {
+        if (newBitmap == null) {
+            mLoadTimes.remove(key);
+        }
+        if (evicted) {
+            mStats.recordEviction();
+        }
+    }
+
+    private static boolean isHardwareBitmap(Bitmap bitmap) {
+        return bitmap.getConfig() == Bitmap.Config.HARDWARE;
     }
 
     /**
-     * Add the bitmap to the LRU cache.
+     * Add the bitmap to the LRU cache matching its memory type.
      */
     protected void addBitmapToMemoryCache(String key, Bitmap bitmap) {
         if (key != null && bitmap != null) {
-            if (key.startsWith(RecentPanelView.TASK_PACKAGE_IDENTIFIER)) {
-                mKeys.add(key);
-            }
-            mMemoryCache.put(key, bitmap);
+            final boolean hardware = isHardwareBitmap(bitmap);
+            // A task screenshot may switch its config, keep only one copy.
+            (hardware ? mMemoryCache : mHardwareCache).remove(key);
+            mLoadTimes.put(key, SystemClock.elapsedRealtime());
+            (hardware ? mHardwareCache : mMemoryCache).put(key, bitmap);
+            mStats.recordPut();
+        }
+    }
+
+    /**
+     * The task snapshot changed. Keep showing the screenshot we have but
+     * refresh it on the next load.
+     */
+    public void markStale(String key) {
+        if (key != null) {
+            mLoadTimes.remove(key);
+        }
+    }
+
+    /**
+     * Wether the bitmap is missing or older than THUMB_MAX_AGE.
+     */
+    protected boolean isStale(String key) {
+        if (key == null) {
+            return true;
         }
+        final Long loadTime = mLoadTimes.get(key);
+        return loadTime == null
+                || SystemClock.elapsedRealtime() - loadTime > THUMB_MAX_AGE;
     }
 
     /**
@@ -108,7 +200,12 @@ public class ThumbnailsCacheController {
         if (key == null) {
             return null;
         }
-        return mMemoryCache.get(key);
+        Bitmap bitmap = mHardwareCache.get(key);
+        if (bitmap == null) {
+            bitmap = mMemoryCache.get(key);
+        }
+        mStats.recordLookup(bitmap != null);
+        return bitmap;
     }
 
     /**
@@ -118,16 +215,15 @@ public class ThumbnailsCacheController {
         if (key == null) {
             return null;
         }
-        if (key.startsWith(RecentPanelView.TASK_PACKAGE_IDENTIFIER)) {
-            mKeys.remove(key);
-        }
-        return mMemoryCache.remove(key);
+        final Bitmap bitmap = mHardwareCache.remove(key);
+        return bitmap != null ? bitmap : mMemoryCache.remove(key);
     }
 
     /**
      * Wether to clear the whole cache
      */
     public void clearCache() {
+        mHardwareCache.evictAll();
         mMemoryCache.evictAll();
     }
 
@@ -135,12 +231,43 @@ public class ThumbnailsCacheController {
         removeBitmapFromMemCache(key);
     }
 
+    @Override
+    public int takeHitCount() {
+        final int heapHits = mMemoryCache.hitCount();
+        return heapHits - mTakenHeapHits.getAndSet(heapHits);
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void setMaxSizeKb(int sizeKb) {
+        mMemoryCache.resize(Math.max(sizeKb, 1));
+    }
+
     /** Trims the cache to a specific size */
-    final void trimToSize(int cacheSize) {
-        mMemoryCache.trimToSize(cacheSize);
+    @Override
+    public void trimToSizeKb(int sizeKb) {
+        mMemoryCache.trimToSize(sizeKb);
+    }
+
+    /**
+     * Trims the graphics memory cache to half of the given percent of its
+     * limit. Graphics memory is shared with the apps rendering, so we give
+     * it back more aggressively than heap.
+     */
+    public void trimGraphicsMemory(int keepPercent) {
+        mHardwareCache.trimToSize((int) ((long) mGraphicsMaxSize * keepPercent / 200));
     }
 
-    public int getMaxMemory() {
-        return mMaxMemory;
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Thumbnails:");
+        mStats.dump(pw, prefix + "  ");
+        pw.print(prefix); pw.print("  size="); pw.print(mMemoryCache.size());
+        pw.print("kb maxSize="); pw.print(mMemoryCache.maxSize());
+        pw.print("kb graphicsSize="); pw.print(mHardwareCache.size());
+        pw.print("kb graphicsMaxSize="); pw.print(mHardwareCache.maxSize());
+        pw.print("kb entries="); pw.println(mLoadTimes.size());
     }
 }
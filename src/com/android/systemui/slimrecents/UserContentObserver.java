@@ -80,6 +80,14 @@ public abstract class UserContentObserver extends ContentObserver {
 
     protected abstract void update();
 
+    /**
+     * Called when the setting behind the uri changed. Subclasses can override
+     * this to update only what depends on it.
+     */
+    protected void update(Uri uri) {
+        update();
+    }
+
     @Override
     public void onChange(boolean selfChange) {
         update();
@@ -87,6 +95,6 @@ public abstract class UserContentObserver extends ContentObserver {
 
     @Override
     public void onChange(boolean selfChange, Uri uri) {
-        update();
+        update(uri);
     }
 }